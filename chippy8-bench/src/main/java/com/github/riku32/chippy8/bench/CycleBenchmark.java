@@ -0,0 +1,38 @@
+package com.github.riku32.chippy8.bench;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter throughput on the bundled ROMs, one operation is one executed instruction
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CycleBenchmark {
+    private static final int CYCLES = 10000;
+
+    @Param({"Breakout.ch8", "Instruction-test.ch8", "Invaders.ch8", "Pong (2 player).ch8", "Tetris.ch8", "Tic-Tac-Toe.ch8"})
+    private String rom;
+
+    private Chip8 chip8;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chip8 = new Chip8(key -> false);
+        chip8.loadRom(Roms.load(rom));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public void cycle() {
+        for (int i = 0; i < CYCLES; i++)
+            chip8.cycle();
+    }
+}
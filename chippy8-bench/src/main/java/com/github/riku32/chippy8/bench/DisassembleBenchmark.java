@@ -0,0 +1,42 @@
+package com.github.riku32.chippy8.bench;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.Disassembly;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disassembly of a whole ROM, one operation is one disassembled instruction
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DisassembleBenchmark {
+    private Chip8 chip8;
+    private int end;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] rom = Roms.load("Invaders.ch8");
+        chip8 = new Chip8(key -> false);
+        chip8.loadRom(rom);
+        end = 0x200 + rom.length;
+    }
+
+    @Benchmark
+    public void disassemble(Blackhole blackhole) {
+        for (int address = 0x200; address < end; address += 2)
+            blackhole.consume(chip8.disassembleOpcode((short) address));
+    }
+
+    @Benchmark
+    public Disassembly analyze() {
+        return Disassembly.analyze(chip8.getMemory(), end);
+    }
+}
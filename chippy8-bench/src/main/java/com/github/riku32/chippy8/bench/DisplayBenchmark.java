@@ -0,0 +1,63 @@
+package com.github.riku32.chippy8.bench;
+
+import com.github.riku32.chippy8.Display;
+import com.github.riku32.chippy8.FrameExchange;
+import com.github.riku32.chippy8.VM.Chip8;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing a frame and rendering it into an offscreen image, one operation is one frame
+ * with every row or a single row changed
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DisplayBenchmark {
+    private long[] frameBuffer;
+    private FrameExchange frames;
+    private Display display;
+    private BufferedImage image;
+    private Graphics2D graphics;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(Roms.load("Invaders.ch8"));
+        for (int i = 0; i < 100000; i++)
+            chip8.cycle();
+
+        frameBuffer = chip8.getFrameBuffer();
+        frames = new FrameExchange();
+        display = new Display(frames);
+        Dimension size = display.getPreferredSize();
+        image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage blit() {
+        frames.publish(frameBuffer, -1);
+        display.blit(graphics);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage blitOneRow() {
+        frames.publish(frameBuffer, 1);
+        display.blit(graphics);
+        return image;
+    }
+}
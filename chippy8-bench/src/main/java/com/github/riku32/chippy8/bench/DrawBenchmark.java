@@ -0,0 +1,61 @@
+package com.github.riku32.chippy8.bench;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sprite drawing under heavy collision, every DRW overlaps the previous one
+ * One operation is one full height sprite draw
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DrawBenchmark {
+    private static final int DRAWS = 8;
+
+    // LD I, sprite, then eight overlapping 15 row draws at 3C,1C so sprites also wrap, then jump back
+    private static final byte[] ROM = {
+            0x60, 0x3C,         // 200: LD V0, 3C
+            0x61, 0x1C,         // 202: LD V1, 1C
+            (byte) 0xA2, 0x1A,  // 204: LD I, 21A
+            (byte) 0xD0, 0x1F,  // 206: DRW V0, V1, F
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            (byte) 0xD0, 0x1F,
+            0x12, 0x06,         // 216: JP 206
+            0x00, 0x00,
+            // 21A: sprite
+            (byte) 0xFF, (byte) 0xAA, (byte) 0x55, (byte) 0xFF, (byte) 0xAA,
+            (byte) 0x55, (byte) 0xFF, (byte) 0xAA, (byte) 0x55, (byte) 0xFF,
+            (byte) 0xAA, (byte) 0x55, (byte) 0xFF, (byte) 0xAA, (byte) 0x55
+    };
+
+    private Chip8 chip8;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        chip8 = new Chip8(key -> false);
+        chip8.loadRom(ROM);
+
+        // Run the setup instructions
+        for (int i = 0; i < 3; i++)
+            chip8.cycle();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAWS)
+    public void draw() {
+        // Eight draws and the jump back
+        for (int i = 0; i < DRAWS + 1; i++)
+            chip8.cycle();
+    }
+}
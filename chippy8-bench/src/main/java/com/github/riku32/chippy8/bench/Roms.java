@@ -0,0 +1,18 @@
+package com.github.riku32.chippy8.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Access to the bundled ROMs, resolved from the "chippy8.roms" system property
+ */
+final class Roms {
+    private static final String DIRECTORY = System.getProperty("chippy8.roms", "../roms");
+
+    private Roms() {}
+
+    static byte[] load(String name) throws IOException {
+        return Files.readAllBytes(Paths.get(DIRECTORY, name));
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.riku32.chippy8.bench;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save state serialization, run with "-prof gc" to see the allocation rate
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateBenchmark {
+    private Chip8 chip8;
+    private byte[] state;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chip8 = new Chip8(key -> false);
+        chip8.loadRom(Roms.load("Invaders.ch8"));
+        for (int i = 0; i < 100000; i++)
+            chip8.cycle();
+
+        state = chip8.saveState();
+        buffer = ByteBuffer.allocate(Chip8.STATE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] save() {
+        return chip8.saveState();
+    }
+
+    @Benchmark
+    public void load() throws IOException {
+        chip8.loadState(state);
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException {
+        chip8.loadState(chip8.saveState());
+    }
+
+    @Benchmark
+    public ByteBuffer roundTripBuffer() throws IOException {
+        buffer.clear();
+        chip8.saveState(buffer);
+        buffer.flip();
+        chip8.loadState(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.riku32.chippy8;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the beeper goes, driven by the sound timer once per emulated frame
+ *
+ * The beep is a precomputed square wave in 16-bit signed little endian mono PCM. Its period is a whole number of
+ * samples, so any run of it can be copied out of one table without computing samples while playing.
+ */
+public interface AudioSink extends Closeable {
+    int SAMPLE_RATE = 44100;
+    int SAMPLES_PER_FRAME = SAMPLE_RATE / 60;
+
+    // 441hz, 100 samples per period
+    int TONE_PERIOD = 100;
+
+    /**
+     * Called by the emulation thread once per emulated frame, must never block
+     *
+     * @param beeping sound timer is running
+     */
+    void frame(boolean beeping);
+
+    default void close() throws IOException {
+    }
+
+    /**
+     * Square wave PCM starting at the beginning of a period
+     *
+     * @param samples length of the wave, plus a period to start copying at any phase
+     * @return 16-bit little endian samples
+     */
+    static byte[] tone(int samples) {
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            short sample = (short) (i % TONE_PERIOD < TONE_PERIOD / 2 ? 6000 : -6000);
+            pcm[i * 2] = (byte) sample;
+            pcm[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
@@ -2,26 +2,85 @@ package com.github.riku32.chippy8;
 
 import com.formdev.flatlaf.FlatDarkLaf;
 import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.RewindBuffer;
 import lombok.Getter;
 
+import javax.management.JMException;
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 public class Chippy8 {
+    // Memory kept for rewinding, in bytes
+    private static final int DEFAULT_REWIND_BUDGET = 16 * 1024 * 1024;
+
+    // Saved states live under the user's home, one store per ROM
+    private static final Path STORE_DIRECTORY = Paths.get(System.getProperty("user.home"), ".chippy8", "states");
+    private static final String QUICK_SLOT = "Quick save";
+
+    // Beeper latency, can be raised with -Dchippy8.audioBuffer=<ms> where audio crackles
+    private static final int AUDIO_BUFFER_MILLIS = Integer.getInteger("chippy8.audioBuffer", 10);
+
+    // Fast forward multipliers offered in the menu
+    private static final int[] SPEEDS = {1, 2, 4, 8, 16};
+
+    private final JFrame frame;
     private final Display display;
 
+    // Only touched by the emulation thread, everything else goes through the mailbox
     private final Chip8 chip8;
+    private final LatchedKeypad keypad;
+    private final Mailbox mailbox = new Mailbox();
+
+    // Every finished frame is handed to each of these, they are read without ever blocking the emulation thread
+    private final List<FrameExchange> frameConsumers = new CopyOnWriteArrayList<>();
+
     private final Debugger debugger;
     private final About about;
+    private final AudioSink audio;
+
+    // Null unless Metrics.ENABLED, every use checks the flag so nothing is left of it when disabled
+    private final Metrics metrics;
+
+    // File reads and writes, kept off the EDT and the emulation thread
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Chippy8 I/O");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Saved states of the loaded ROM, null until a ROM is opened
+    private volatile StateStore store;
+
+    // Movie being recorded, only touched by the emulation thread
+    private Movie recording;
+    private JCheckBoxMenuItem recordMovie;
 
     /**
      * Check if file has extensions
@@ -33,23 +92,170 @@ public class Chippy8 {
         return false;
     }
 
+    // Open the state store of a ROM, stores are kept per ROM content
+    private void openStore(byte[] rom) {
+        StateStore previous = store;
+        store = new StateStore(STORE_DIRECTORY.resolve(romId(rom)));
+
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String romId(byte[] rom) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(rom);
+            StringBuilder id = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                id.append(String.format("%02x", digest[i]));
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void loadFromStore(JFrame frame, StateStore.Entry entry) {
+        store.load(entry).thenCompose(this::loadState).whenComplete((ignored, error) -> {
+            if (error != null)
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                        "Could not load the state", "Error", JOptionPane.ERROR_MESSAGE));
+        });
+    }
+
+    // Load a state on the emulation thread, the frames before it cannot be rewound to
+    private CompletableFuture<Void> loadState(byte[] state) {
+        return mailbox.call(() -> {
+            stopRecording();
+            chip8.loadState(state);
+            rewindBuffer.clear();
+            return null;
+        });
+    }
+
+    // Play the beeper on the default device, silently do without if there is none
+    private static AudioSink openAudio() {
+        try {
+            return new LineAudioSink(AUDIO_BUFFER_MILLIS);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            return new NullAudioSink();
+        }
+    }
+
+    // Register the metrics bean and serve them over HTTP if -Dchippy8.metrics.port is set
+    private static Metrics startMetrics(Chip8 chip8) {
+        Metrics metrics = new Metrics(chip8);
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            System.err.println("Could not register metrics: " + e.getMessage());
+        }
+
+        int port = Integer.getInteger("chippy8.metrics.port", 0);
+        if (port > 0) {
+            try {
+                metrics.serve(port);
+            } catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+        return metrics;
+    }
+
+    // Stop recording and offer to save the movie, called on the emulation thread
+    // Anything that breaks the chain of recorded frames stops the recording, such as pausing, rewinding or loading
+    private void stopRecording() {
+        Movie movie = recording;
+        if (movie == null)
+            return;
+
+        recording = null;
+        keypad.setLatched(false);
+        SwingUtilities.invokeLater(() -> {
+            recordMovie.setSelected(false);
+            saveMovie(movie);
+        });
+    }
+
+    private void saveMovie(Movie movie) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Save movie");
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                "Chippy Movie", "c8m"));
+
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        String pathToSave = chooser.getSelectedFile().getAbsolutePath();
+        if (!pathToSave.endsWith(".c8m"))
+            pathToSave += ".c8m";
+        final Path path = Paths.get(pathToSave);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                movie.write(path);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, io).whenComplete((ignored, error) -> {
+            if (error != null)
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                        "Could not save the movie", "Error", JOptionPane.ERROR_MESSAGE));
+        });
+    }
+
     public Chippy8(int frequency) throws IOException {
-        Input keypad = new Input();
+        this.keypad = new LatchedKeypad(new Input());
         this.chip8 = new Chip8(keypad);
+        this.audio = openAudio();
+        this.metrics = Metrics.ENABLED ? startMetrics(chip8) : null;
 
         setFrequency(frequency);
 
+        // Holding backspace rewinds
+        KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(e -> {
+            if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+                if (e.getID() == KeyEvent.KEY_PRESSED)
+                    mailbox.run(() -> rewinding = true);
+                else if (e.getID() == KeyEvent.KEY_RELEASED)
+                    mailbox.run(() -> rewinding = false);
+            }
+            return false;
+        });
+
         // Register custom theme because Java is ugly
         FlatDarkLaf.setup();
 
-        final JFrame frame = new JFrame("Chippy8");
+        frame = new JFrame("Chippy8");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        display = new Display(chip8.getVideoMemory());
+
+        // Nothing to see while minimized or hidden, keep emulating but wake up less
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowIconified(WindowEvent e) {
+                scheduler.setLowPower(true);
+            }
+
+            public void windowDeiconified(WindowEvent e) {
+                scheduler.setLowPower(false);
+            }
+        });
+        frame.addComponentListener(new ComponentAdapter() {
+            public void componentHidden(ComponentEvent e) {
+                scheduler.setLowPower(true);
+            }
+
+            public void componentShown(ComponentEvent e) {
+                scheduler.setLowPower(false);
+            }
+        });
+        display = new Display(subscribe());
         frame.add(display);
         frame.setResizable(false);
         frame.setVisible(true);
 
-        debugger = new Debugger(chip8);
+        debugger = new Debugger(chip8, mailbox);
         debugger.setVisible(false);
 
         about = new About();
@@ -69,70 +275,207 @@ public class Chippy8 {
                 chooser.addChoosableFileFilter(new FileNameExtensionFilter(
                         "Chippy State", "state"));
 
-                if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
-                    byte[] buffer;
+                if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+                    return;
+
+                final File file = chooser.getSelectedFile();
+                if (!hasExtension(file.getName(), "state", "ch8", "rom")) {
+                    JOptionPane.showMessageDialog(frame, "Invalid file type provided",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
+                CompletableFuture.supplyAsync(() -> {
                     try {
-                        buffer = Files.readAllBytes(chooser.getSelectedFile().toPath());
-                    } catch (Exception ignored) {
-                        JOptionPane.showMessageDialog(frame, "Could not read ROM file",
-                                "Error", JOptionPane.ERROR_MESSAGE);
-                        return;
+                        return Files.readAllBytes(file.toPath());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
                     }
-
-                    if (hasExtension(chooser.getSelectedFile().getName(), "state")) {
-                        try {
-                            chip8.loadState(buffer);
-                            display.repaint();
-                        } catch (Exception ignored) {
-                            JOptionPane.showMessageDialog(frame, "There was a problem deserializing the state",
-                                    "Error", JOptionPane.ERROR_MESSAGE);
-                        }
-                    } else if (hasExtension(chooser.getSelectedFile().getName(), "ch8", "rom")) {
-                        chip8.loadRom(buffer);
-                    } else {
-                        JOptionPane.showMessageDialog(frame, "Invalid file type provided",
+                }, io).whenComplete((buffer, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(frame, "Could not read file",
                                 "Error", JOptionPane.ERROR_MESSAGE);
+                    } else if (hasExtension(file.getName(), "state")) {
+                        loadState(buffer).whenComplete((ignored, loadError) -> {
+                            if (loadError != null)
+                                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                                        "There was a problem deserializing the state",
+                                        "Error", JOptionPane.ERROR_MESSAGE));
+                        });
+                    } else {
+                        mailbox.run(() -> {
+                            stopRecording();
+                            chip8.loadRom(buffer);
+                            rewindBuffer.clear();
+                        }).whenComplete((ignored, loadError) -> SwingUtilities.invokeLater(() -> {
+                            if (loadError != null)
+                                JOptionPane.showMessageDialog(frame, loadError.getMessage(),
+                                        "Error", JOptionPane.ERROR_MESSAGE);
+                            else
+                                openStore(buffer);
+                        }));
                     }
-                }
+                }));
             }
         }));
 
         fileMenu.add(new JMenuItem(new AbstractAction("Save state") {
             public void actionPerformed(ActionEvent e) {
+                mailbox.call(chip8::saveState).thenAccept(state -> SwingUtilities.invokeLater(() -> save(state)));
+            }
 
-                byte[] state;
-                try {
-                    state = chip8.saveState();
-                } catch (Exception ignored) {
-                    JOptionPane.showMessageDialog(frame, "Could not get the state",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-
+            private void save(byte[] state) {
                 JFileChooser chooser = new JFileChooser();
                 chooser.setDialogTitle("Save state");
                 chooser.setFileFilter(new FileNameExtensionFilter(
                         "Chippy State", "state"));
 
-                if (chooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+                    return;
+
+                String pathToSave = chooser.getSelectedFile().getAbsolutePath();
+                if (!pathToSave.endsWith(".state"))
+                    pathToSave += ".state";
+                final Path path = Paths.get(pathToSave);
+
+                CompletableFuture.runAsync(() -> {
                     try {
-                        String pathToSave = chooser.getSelectedFile().getAbsolutePath();
-                        if (!pathToSave.endsWith(".state"))
-                            pathToSave += ".state";
-                        File file = new File(pathToSave);
-
-                        if (file.createNewFile()) {
-                            FileOutputStream outputStream = new FileOutputStream(file);
-                            outputStream.write(state);
-                        } else {
-                            JOptionPane.showMessageDialog(frame, "That file already exists!",
-                                    "Error", JOptionPane.ERROR_MESSAGE);
-                        }
-                    } catch (Exception ignored) {
-                        JOptionPane.showMessageDialog(frame, "Could not save the state",
-                                "Error", JOptionPane.ERROR_MESSAGE);
+                        Files.write(path, state, StandardOpenOption.CREATE_NEW);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
                     }
+                }, io).whenComplete((ignored, error) -> {
+                    if (error == null)
+                        return;
+
+                    String message = error.getCause() instanceof UncheckedIOException
+                            && error.getCause().getCause() instanceof FileAlreadyExistsException
+                            ? "That file already exists!" : "Could not save the state";
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, message,
+                            "Error", JOptionPane.ERROR_MESSAGE));
+                });
+            }
+        }));
+
+        fileMenu.add(new JMenuItem(new AbstractAction("Export Listing") {
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setDialogTitle("Export listing");
+                chooser.setFileFilter(new FileNameExtensionFilter(
+                        "Assembly listing", "asm"));
+
+                if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+                    return;
+
+                String pathToSave = chooser.getSelectedFile().getAbsolutePath();
+                if (!pathToSave.endsWith(".asm"))
+                    pathToSave += ".asm";
+                final Path path = Paths.get(pathToSave);
+
+                mailbox.call(chip8::getDisassembly).thenAcceptAsync(disassembly -> {
+                    try {
+                        disassembly.writeListing(path);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, io).whenComplete((ignored, error) -> {
+                    if (error != null)
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                                "Could not write the listing", "Error", JOptionPane.ERROR_MESSAGE));
+                });
+            }
+        }));
+
+        recordMovie = new JCheckBoxMenuItem("Record Movie");
+        recordMovie.addActionListener(e -> {
+            if (recordMovie.isSelected()) {
+                mailbox.run(() -> {
+                    recording = new Movie(chip8.saveState());
+                    keypad.setLatched(true);
+                });
+            } else {
+                mailbox.run(this::stopRecording);
+            }
+        });
+        fileMenu.add(recordMovie);
+
+        fileMenu.addSeparator();
+
+        JMenuItem quickSave = new JMenuItem(new AbstractAction("Quick Save") {
+            public void actionPerformed(ActionEvent e) {
+                if (store == null) {
+                    JOptionPane.showMessageDialog(frame, "Open a ROM first",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
+                StateStore target = store;
+                long start = System.nanoTime();
+                mailbox.call(chip8::saveState)
+                        .thenCompose(state -> target.save(QUICK_SLOT, state))
+                        .whenComplete((entry, error) -> {
+                            if (Metrics.ENABLED && error == null)
+                                metrics.stateSaved(System.nanoTime() - start);
+                            if (error != null)
+                                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                                        "Could not save the state", "Error", JOptionPane.ERROR_MESSAGE));
+                        });
+            }
+        });
+        quickSave.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F5, 0));
+        fileMenu.add(quickSave);
+
+        JMenuItem quickLoad = new JMenuItem(new AbstractAction("Quick Load") {
+            public void actionPerformed(ActionEvent e) {
+                StateStore.Entry entry = store == null ? null : store.latest(QUICK_SLOT);
+                if (entry == null) {
+                    JOptionPane.showMessageDialog(frame, "No quick save for this ROM",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
+                loadFromStore(frame, entry);
+            }
+        });
+        quickLoad.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0));
+        fileMenu.add(quickLoad);
+
+        fileMenu.add(new JMenuItem(new AbstractAction("Saved States") {
+            public void actionPerformed(ActionEvent e) {
+                if (store == null || store.list().isEmpty()) {
+                    JOptionPane.showMessageDialog(frame, "No saved states for this ROM",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
                 }
+
+                // Newest first
+                java.util.List<StateStore.Entry> entries = new ArrayList<>(store.list());
+                Collections.reverse(entries);
+
+                JList<StateStore.Entry> list = new JList<>(entries.toArray(new StateStore.Entry[0]));
+                list.setSelectedIndex(0);
+                list.setCellRenderer(new DefaultListCellRenderer() {
+                    public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                                  boolean isSelected, boolean cellHasFocus) {
+                        StateStore.Entry entry = (StateStore.Entry) value;
+                        String text = String.format("%s  %tF %<tT", entry.getLabel(), entry.getTimestamp());
+                        return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+                    }
+                });
+
+                JScrollPane scrollPane = new JScrollPane(list);
+                scrollPane.setPreferredSize(new Dimension(300, 300));
+                int option = JOptionPane.showOptionDialog(
+                        frame,
+                        scrollPane,
+                        "Load saved state",
+                        JOptionPane.OK_CANCEL_OPTION,
+                        JOptionPane.PLAIN_MESSAGE,
+                        null,
+                        null,
+                        null);
+                if (option == JOptionPane.OK_OPTION && list.getSelectedValue() != null)
+                    loadFromStore(frame, list.getSelectedValue());
             }
         }));
 
@@ -164,6 +507,45 @@ public class Chippy8 {
             }
         }));
 
+        systemMenu.add(new JMenuItem(new AbstractAction("Rewind Memory") {
+            public void actionPerformed(ActionEvent e) {
+                SpinnerNumberModel sModel = new SpinnerNumberModel(rewindBudget / (1024 * 1024), 1, 1024, 1);
+                JSpinner spinner = new JSpinner(sModel);
+                int option = JOptionPane.showOptionDialog(
+                        null,
+                        spinner,
+                        "Set rewind memory (MB)",
+                        JOptionPane.OK_CANCEL_OPTION,
+                        JOptionPane.QUESTION_MESSAGE,
+                        null,
+                        null,
+                        null);
+                if (option == JOptionPane.OK_OPTION) {
+                    rewindBudget = (Integer) spinner.getValue() * 1024 * 1024;
+                    int budget = rewindBudget;
+                    mailbox.run(() -> rewindBuffer = new RewindBuffer(budget));
+                }
+            }
+        }));
+
+        JMenu speedMenu = new JMenu("Speed");
+        ButtonGroup speeds = new ButtonGroup();
+        for (int multiplier : SPEEDS) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(multiplier + "x", multiplier == getSpeed());
+            item.addActionListener(e -> setSpeed(multiplier));
+            speeds.add(item);
+            speedMenu.add(item);
+        }
+        systemMenu.add(speedMenu);
+
+        JCheckBoxMenuItem frameTiming = new JCheckBoxMenuItem("Show Frame Timing");
+        frameTiming.addActionListener(e -> {
+            showTiming = frameTiming.isSelected();
+            if (!showTiming)
+                frame.setTitle("Chippy8");
+        });
+        systemMenu.add(frameTiming);
+
         final JMenu displayMenu = new JMenu("Display");
         menuBar.add(displayMenu);
 
@@ -204,65 +586,191 @@ public class Chippy8 {
 
         frame.setJMenuBar(menuBar);
         frame.pack();
-
-        // Too many updates to swing will cause lag for the emulator
-        // Debugger will run on another thread of its own at 60hz intervals
-        Executors.newSingleThreadScheduledExecutor()
-                .scheduleAtFixedRate(debugger, 0, 60, TimeUnit.MILLISECONDS);
     }
 
+    // Frame history, replaced when the budget changes and cleared when a ROM or state is loaded
+    private RewindBuffer rewindBuffer = new RewindBuffer(DEFAULT_REWIND_BUDGET);
+    private int rewindBudget = DEFAULT_REWIND_BUDGET;
+
+    // Rewind key is held, while set the game steps back one frame per refresh
+    private boolean rewinding;
+
+    private final FrameScheduler scheduler = new FrameScheduler();
+
+    // Append frame timing and input latency to the window title once a second
+    private volatile boolean showTiming;
+
+    // Frequency set from the menu, also kept by the emulation thread in cycleFrequency
     @Getter
-    private int frequency;
-    private long periodNanos;
-    private int refreshCycles;
+    private volatile int frequency;
+    private int cycleFrequency;
 
     /**
-     * Change frequency
+     * Change frequency, takes effect on the next frame
      *
      * @param frequency in hz
      */
     public void setFrequency(int frequency) {
         this.frequency = frequency;
-        this.periodNanos = 1000000000 / frequency;
-        this.refreshCycles = frequency / 60;
+        mailbox.run(() -> cycleFrequency = frequency);
+    }
+
+    // Emulated frames per 60hz frame, also kept by the emulation thread in frameSpeed
+    @Getter
+    private volatile int speed = 1;
+    private int frameSpeed = 1;
+
+    /**
+     * Fast forward by running several emulated frames per real frame, takes effect on the next frame
+     * Timers still tick once per emulated frame, so games run as they would at normal speed, only faster
+     *
+     * @param speed emulated frames per real frame, 1 for normal speed
+     */
+    public void setSpeed(int speed) {
+        if (speed < 1)
+            throw new IllegalArgumentException("Speed must be at least 1");
+
+        this.speed = speed;
+        mailbox.run(() -> frameSpeed = speed);
     }
 
-    // Game loop
+    /**
+     * Receive every finished frame from now on
+     *
+     * @return exchange to take frames from, for a single consumer
+     */
+    public FrameExchange subscribe() {
+        FrameExchange exchange = new FrameExchange();
+        frameConsumers.add(exchange);
+        return exchange;
+    }
+
+    /**
+     * Stop publishing frames to an exchange
+     *
+     * @param exchange returned by {@link #subscribe()}
+     */
+    public void unsubscribe(FrameExchange exchange) {
+        frameConsumers.remove(exchange);
+    }
+
+    // Game loop, cycles are run in a batch per frame and the thread sleeps in between
     public void loop() {
-        int refreshCycles = 0;
+        long cycleRemainder = 0;
+        int timedFrames = 0;
+        boolean drawn = false;
+
+        // Time from a key event to the end of the frame the program first saw it in, reset every report
+        long inputLatencyTotal = 0, inputLatencyWorst = 0;
+        int inputEvents = 0;
 
         while (true) {
-            long initTime = System.nanoTime();
+            int frames = scheduler.awaitFrames();
 
-            if (!debugger.isPaused())
-                chip8.cycle();
+            long workStart = System.nanoTime();
 
-            // Screen, delay, and sound are all locked to 60hz
-            if (refreshCycles % (this.refreshCycles) == 0) {
-                refreshCycles = 0;
+            // Commands from other threads run between frames
+            mailbox.drain();
 
-                if (chip8.isDrawFlag()) {
-                    display.repaint();
-                    chip8.resetDrawFlag();
+            // Fast forward runs whole emulated frames back to back, only the last one of the batch is drawn
+            int emulatedFrames = frames * frameSpeed;
+            for (int i = 0; i < emulatedFrames; i++) {
+                // Frequencies that are not a multiple of 60 spread the remainder over frames
+                cycleRemainder += cycleFrequency;
+                long cycles = cycleRemainder / FrameScheduler.FRAME_RATE;
+                cycleRemainder %= FrameScheduler.FRAME_RATE;
+
+                if (recording != null && (debugger.isPaused() || rewinding))
+                    stopRecording();
+
+                // While recording the keys are held for the whole frame
+                int keys = recording != null ? keypad.latch() : 0;
+
+                if (!debugger.isPaused() && !rewinding) {
+                    for (long cycle = 0; cycle < cycles; cycle++)
+                        chip8.cycle();
+                    debugger.checkBreak();
+
+                    // A breakpoint stopped the frame early, it would not replay with the full cycle count
+                    if (recording != null && debugger.isPaused())
+                        stopRecording();
+
+                    if (Metrics.ENABLED)
+                        metrics.frame(cycles);
                 }
 
-                if (chip8.getDelayTimer() > 0)
-                    chip8.setDelayTimer((byte) (chip8.getDelayTimer() - 0x01));
+                refresh();
 
-                // Audio not implemented, do timer anyways
-                if (chip8.getSoundTimer() > 0)
-                    chip8.setSoundTimer((byte) (chip8.getSoundTimer() - 0x01));
+                if (recording != null)
+                    recording.record(keys, (int) cycles, chip8.frameHash());
+
+                // The finished frame goes out with the rows it changed, consumers copy only those
+                int dirtyRows = chip8.takeDirtyRows();
+                for (FrameExchange exchange : frameConsumers)
+                    exchange.publish(chip8.getFrameBuffer(), dirtyRows);
+                drawn |= dirtyRows != 0;
+
+                long inputNanos = chip8.takeInputNanos();
+                if (inputNanos != 0) {
+                    long latency = System.nanoTime() - inputNanos;
+                    inputLatencyTotal += latency;
+                    inputLatencyWorst = Math.max(inputLatencyWorst, latency);
+                    inputEvents++;
+                }
             }
 
-            long endTime = System.nanoTime();
-            refreshCycles++;
+            debugger.publish();
 
-            long initNanos = System.nanoTime();
-            while (System.nanoTime() < initNanos + periodNanos - (endTime - initTime));
+            // Nothing is drawn while the window is hidden, frames are still published and the display catches up when shown
+            if (drawn && !scheduler.isLowPower()) {
+                display.repaint();
+                drawn = false;
+
+                if (Metrics.ENABLED)
+                    metrics.repaint();
+            }
+
+            if (Metrics.ENABLED)
+                metrics.frameTime((System.nanoTime() - workStart) / emulatedFrames);
+
+            timedFrames += frames;
+            if (timedFrames >= FrameScheduler.FRAME_RATE) {
+                timedFrames = 0;
+                if (Metrics.ENABLED)
+                    metrics.sample();
+                String jitter = scheduler.jitterReport();
+                if (showTiming && jitter != null) {
+                    String report = inputEvents == 0 ? jitter : String.format(Locale.ROOT, "%s, input %.2f ms, worst %.2f ms",
+                            jitter, inputLatencyTotal / 1e6 / inputEvents, inputLatencyWorst / 1e6);
+                    SwingUtilities.invokeLater(() -> frame.setTitle("Chippy8 - " + report));
+                }
+
+                inputLatencyTotal = inputLatencyWorst = 0;
+                inputEvents = 0;
+            }
+        }
+    }
+
+    // Screen, delay, and sound are all locked to 60hz
+    private void refresh() {
+        // Step back one frame per refresh while rewinding, otherwise record the frame
+        if (rewinding) {
+            rewindBuffer.rewind(chip8);
+        } else if (!debugger.isPaused()) {
+            rewindBuffer.capture(chip8);
         }
+
+        // The beeper sounds for every frame the sound timer is running
+        audio.frame(chip8.getSoundTimer() != 0);
+        chip8.tickTimers();
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            Headless.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Chippy8 chippy8 = new Chippy8(600);
 
         chippy8.loop();
@@ -1,18 +1,91 @@
 package com.github.riku32.chippy8;
 
+import com.github.riku32.chippy8.VM.Breakpoint;
+import com.github.riku32.chippy8.VM.Breakpoints;
 import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.Disassembly;
+import com.github.riku32.chippy8.VM.Memory;
+import com.github.riku32.chippy8.VM.Profiler;
+import com.github.riku32.chippy8.VM.Tracer;
+import com.github.riku32.chippy8.VM.Watchpoint;
 import lombok.Getter;
 
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableCellRenderer;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Objects;
 
-public class Debugger extends JFrame implements Runnable {
+public class Debugger extends JFrame {
+    // Rows of the disassembly table, the current instruction is in the middle
+    private static final int ROWS = 27;
+    private static final int PC_ROW = ROWS / 2;
+
+    // Refresh interval while visible
+    private static final int REFRESH_MILLIS = 60;
+
+    // Preformatted hex so refreshing does not format anything
+    private static final String[] HEX_BYTE = new String[256];
+    private static final String[] HEX_ADDRESS = new String[4096];
+
+    static {
+        for (int i = 0; i < HEX_BYTE.length; i++)
+            HEX_BYTE[i] = String.format("%02X", i);
+        for (int i = 0; i < HEX_ADDRESS.length; i++)
+            HEX_ADDRESS[i] = HEX_BYTE[i >> 8] + HEX_BYTE[i & 0xFF];
+    }
+
+    // Four hex digits, only values outside of memory are built on the fly
+    private static String hex16(int value) {
+        return value < HEX_ADDRESS.length ? HEX_ADDRESS[value] : HEX_BYTE[value >> 8] + HEX_BYTE[value & 0xFF];
+    }
+
     private final Chip8 chip8;
+    private final Mailbox mailbox;
+
+    // Stamp of the newest change to the machine and instructions profiled as of the last frame
+    // Published by the emulation thread so the EDT can read them
+    private volatile long publishedStamp;
+    private volatile long publishedHits;
+
+    // Stamp and hits the last capture was requested for, nothing is posted while they have not changed
+    // Only touched by the EDT
+    private long requestedStamp = -1;
+    private long requestedHits;
+
+    // A capture has been requested and not been shown yet
+    private boolean capturing;
+
+    // A single view is filled by the emulation thread and shown by the EDT, only one capture is ever in flight
+    private final View view = new View();
+    private final Runnable captureCommand = this::capture;
+    private final Runnable showCommand = this::showView;
+
+    // Values last shown in the register fields, same order as registerValues
+    private final int[] shownRegisters = new int[20];
+
+    // Address, opcode and profiler count last shown on each disassembly row, -1 for an empty row
+    private final int[] rowAddress = new int[ROWS];
+    private final int[] rowOpcode = new int[ROWS];
+    private final int[] rowHits = new int[ROWS];
+    private final String[][] rows = new String[ROWS][4];
+
+    // Share of the hottest address on each row, shades the hits column
+    private final float[] rowHeat = new float[ROWS];
+    private final DisassemblyModel disassemblyModel = new DisassemblyModel();
+
+    private final Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refresh());
 
     // 0, 1 - PC and I
     // 2-18 - Registers
@@ -21,11 +94,29 @@ public class Debugger extends JFrame implements Runnable {
 
     private final JTable disassemblyTable;
 
+    private final JToggleButton pauseButton;
+
+    // Only touched by the emulation thread, set through the mailbox
     @Getter
     private boolean paused = false;
 
-    public Debugger(final Chip8 chip8) throws IOException {
+    // Last profile taken, kept after profiling stops so it can still be shown and exported
+    // Only touched by the emulation thread
+    private Profiler profiler;
+
+    // Profiling started or stopped since the last capture, the hits have to be shown again
+    // Only touched by the emulation thread
+    private boolean profileChanged;
+
+    // Only touched by the emulation thread, armed on the machine while not empty
+    private final Breakpoints breakpoints = new Breakpoints();
+
+    // Trace being recorded, only touched by the EDT
+    private Tracer tracer;
+
+    public Debugger(final Chip8 chip8, final Mailbox mailbox) throws IOException {
         this.chip8 = chip8;
+        this.mailbox = mailbox;
 
         setTitle("Debugger");
         setSize(300, 600);
@@ -45,8 +136,12 @@ public class Debugger extends JFrame implements Runnable {
             Icon stepIcon = new ImageIcon(
                     Objects.requireNonNull(stepStream).readAllBytes(), "Step");
             stepStream.close();
-            final JToggleButton stepButton = new JToggleButton(stepIcon);
-            stepButton.addItemListener(e -> chip8.cycle());
+            final JButton stepButton = new JButton(stepIcon);
+            stepButton.addActionListener(e -> mailbox.run(() -> {
+                breakpoints.resume();
+                chip8.cycle();
+                checkBreak();
+            }));
 
             stepButton.setEnabled(false);
 
@@ -55,15 +150,53 @@ public class Debugger extends JFrame implements Runnable {
             Icon pauseIcon = new ImageIcon(
                     Objects.requireNonNull(pauseStream).readAllBytes(), "Pause");
             pauseStream.close();
-            JToggleButton pauseButton = new JToggleButton(pauseIcon);
+            pauseButton = new JToggleButton(pauseIcon);
             pauseButton.addItemListener(e -> {
                 boolean enabled = e.getStateChange() == ItemEvent.SELECTED;
-                paused = enabled;
+                mailbox.run(() -> {
+                    paused = enabled;
+                    if (!enabled)
+                        breakpoints.resume();
+                });
                 stepButton.setEnabled(enabled);
+                if (!enabled)
+                    setTitle("Debugger");
+            });
+
+            // Counts run per address, shown in the disassembly until the next profile starts
+            JToggleButton profileButton = new JToggleButton("Profile");
+            profileButton.addItemListener(e -> {
+                boolean enabled = e.getStateChange() == ItemEvent.SELECTED;
+                mailbox.run(() -> {
+                    if (enabled)
+                        profiler = new Profiler();
+                    chip8.setProfiler(enabled ? profiler : null);
+                    profileChanged = true;
+                });
+                // A new profile clears the hits without changing the machine, capture again anyway
+                requestedStamp = -1;
+            });
+
+            JButton exportButton = new JButton("Export Profile");
+            exportButton.addActionListener(e -> exportProfile());
+
+            // Every instruction is written to a trace file until toggled off
+            JToggleButton traceButton = new JToggleButton("Trace");
+            traceButton.addItemListener(e -> {
+                if (e.getStateChange() == ItemEvent.SELECTED) {
+                    if (!startTrace())
+                        traceButton.setSelected(false);
+                } else {
+                    stopTrace();
+                }
             });
 
             toolBar.add(pauseButton);
             toolBar.add(stepButton);
+            toolBar.addSeparator();
+            toolBar.add(profileButton);
+            toolBar.add(exportButton);
+            toolBar.add(traceButton);
 
             constraints.gridx = 0;
             constraints.gridy = 0;
@@ -145,10 +278,12 @@ public class Debugger extends JFrame implements Runnable {
             String[] columnNames = {
                     "Location",
                     "Value",
-                    "Opcode"
+                    "Opcode",
+                    "Hits"
             };
 
-            disassemblyTable = new JTable(new Object[27][3], columnNames) {
+            disassemblyModel.columnNames = columnNames;
+            disassemblyTable = new JTable(disassemblyModel) {
                 public boolean editCellAt(int row, int column, java.util.EventObject e) {
                     return false;
                 }
@@ -156,7 +291,10 @@ public class Debugger extends JFrame implements Runnable {
                 public Component prepareRenderer(TableCellRenderer renderer, int row, int column) {
                     Component c = super.prepareRenderer(renderer, row, column);
                     if (!isRowSelected(row)) {
-                        c.setBackground(row == 13 ? Color.DARK_GRAY : getBackground());
+                        Color background = row == PC_ROW ? Color.DARK_GRAY : getBackground();
+                        if (column == 3 && rowHeat[row] > 0)
+                            background = heat(background, rowHeat[row]);
+                        c.setBackground(background);
                         disassemblyTable.getSelectionModel().clearSelection();
                     }
                     return c;
@@ -178,40 +316,396 @@ public class Debugger extends JFrame implements Runnable {
             tabbedPane.addTab("Disassembly", memoryPanel);
         }
 
+        // Breakpoints, the list mirrors the set owned by the emulation thread
+        {
+            JPanel breakpointPanel = new JPanel(new BorderLayout());
+
+            DefaultListModel<Object> pointModel = new DefaultListModel<>();
+            JList<Object> pointList = new JList<>(pointModel);
+
+            JTextField pointField = new JTextField();
+            pointField.setToolTipText("<html>234 - break at 234<br>234 if V3 == 1F - break while V3 is 1F<br>"
+                    + "w 300-30F - break before a write to 300-30F, r for reads, rw for both</html>");
+
+            JButton addButton = new JButton("Add");
+            ActionListener addPoint = e -> {
+                Object point;
+                try {
+                    point = parsePoint(pointField.getText().trim());
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, pointField.getToolTipText(),
+                            "Invalid breakpoint", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
+                pointModel.addElement(point);
+                pointField.setText("");
+                mailbox.run(() -> {
+                    if (point instanceof Breakpoint)
+                        breakpoints.add((Breakpoint) point);
+                    else
+                        breakpoints.add((Watchpoint) point);
+                    chip8.setBreakpoints(breakpoints);
+                });
+            };
+            addButton.addActionListener(addPoint);
+            pointField.addActionListener(addPoint);
+
+            JButton removeButton = new JButton("Remove");
+            removeButton.addActionListener(e -> {
+                for (Object point : pointList.getSelectedValuesList()) {
+                    pointModel.removeElement(point);
+                    mailbox.run(() -> {
+                        if (point instanceof Breakpoint)
+                            breakpoints.remove((Breakpoint) point);
+                        else
+                            breakpoints.remove((Watchpoint) point);
+                        chip8.setBreakpoints(breakpoints);
+                    });
+                }
+            });
+
+            JPanel entryPanel = new JPanel(new BorderLayout());
+            entryPanel.add(pointField, BorderLayout.CENTER);
+            entryPanel.add(addButton, BorderLayout.EAST);
+
+            breakpointPanel.add(entryPanel, BorderLayout.NORTH);
+            breakpointPanel.add(new JScrollPane(pointList), BorderLayout.CENTER);
+            breakpointPanel.add(removeButton, BorderLayout.SOUTH);
+
+            tabbedPane.addTab("Breakpoints", breakpointPanel);
+        }
+
         constraints.fill = GridBagConstraints.BOTH;
         add(tabbedPane, constraints);
 
+        Arrays.fill(shownRegisters, -1);
+        Arrays.fill(rowAddress, -2);
+
         pack();
         this.setResizable(false);
     }
 
-    public void run() {
-        // PC and Index
-        registerValues[0].setText(String.format("%04X", chip8.getPc()));
-        registerValues[1].setText(String.format("%04X", chip8.getIndex()));
+    // Hex address, optionally followed by "if <register> <comparison> <hex value>", or a watchpoint as
+    // r, w or rw followed by a hex address or range
+    private static Object parsePoint(String text) {
+        String[] parts = text.split("\\s+");
 
-        // Registers
-        byte[] registers = chip8.getV();
-        for (int i = 0; i < 16; i++)
-            registerValues[i + 2].setText(String.format("%02X", registers[i] & 0xff));
-
-        // Timers
-        registerValues[18].setText(String.format("%02X", chip8.getDelayTimer()));
-        registerValues[19].setText(String.format("%02X", chip8.getSoundTimer()));
-
-        int currentPos = chip8.getPc();
-        short[] memory = chip8.getMemory();
-
-        // Update disassembly table
-        int tableI = 0;
-        for (int i = currentPos - 26; i <= currentPos + 26; i += 2) {
-            boolean inBounds = (i >= 0) && (i < memory.length);
-            if (!inBounds) continue;
-
-            disassemblyTable.setValueAt(String.format("%04X", i), tableI, 0);
-            disassemblyTable.setValueAt(String.format("%04X", memory[i] << 8 | memory[i+1]), tableI, 1);
-            disassemblyTable.setValueAt(chip8.disassembleOpcode((short) i), tableI, 2);
-            tableI++;
+        if (parts.length == 2 && parts[0].matches("(?i)r|w|rw")) {
+            String kind = parts[0].toLowerCase();
+            int access = (kind.contains("r") ? Watchpoint.READ : 0) | (kind.contains("w") ? Watchpoint.WRITE : 0);
+
+            String[] range = parts[1].split("-", 2);
+            int start = Integer.parseInt(range[0], 16);
+            return new Watchpoint(start, range.length == 2 ? Integer.parseInt(range[1], 16) : start, access);
+        }
+
+        int address = Integer.parseInt(parts[0], 16);
+        if (parts.length == 1)
+            return new Breakpoint(address);
+
+        if (parts.length != 5 || !parts[1].equalsIgnoreCase("if"))
+            throw new IllegalArgumentException(text);
+
+        String register = parts[2].toUpperCase();
+        int number;
+        if (register.equals("I"))
+            number = Breakpoint.INDEX;
+        else if (register.matches("V[0-9A-F]"))
+            number = Integer.parseInt(register.substring(1), 16);
+        else
+            throw new IllegalArgumentException(register);
+
+        return new Breakpoint(address, number, Breakpoint.Comparison.of(parts[3]), Integer.parseInt(parts[4], 16));
+    }
+
+    /**
+     * Pause if a breakpoint stopped the machine, called by the emulation thread after running cycles
+     */
+    public void checkBreak() {
+        String hit = breakpoints.getHit();
+        if (hit == null)
+            return;
+
+        paused = true;
+        SwingUtilities.invokeLater(() -> {
+            setTitle("Debugger - " + hit);
+            pauseButton.setSelected(true);
+            if (!isVisible())
+                setVisible(true);
+        });
+    }
+
+    // Blend towards red, the share is log scaled so warm code stands out next to the hottest loop
+    private static Color heat(Color background, float share) {
+        float t = 0.15f + 0.85f * share;
+        return new Color(
+                Math.round(background.getRed() + (200 - background.getRed()) * t),
+                Math.round(background.getGreen() * (1 - t) + 40 * t),
+                Math.round(background.getBlue() * (1 - t) + 40 * t));
+    }
+
+    // Open a trace file and attach it, false if no file was chosen or it could not be created
+    private boolean startTrace() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Record trace");
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                "Chippy8 trace", "c8t"));
+
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+            return false;
+
+        String pathToSave = chooser.getSelectedFile().getAbsolutePath();
+        if (!pathToSave.endsWith(".c8t"))
+            pathToSave += ".c8t";
+
+        try {
+            final Tracer started = new Tracer(chip8, Paths.get(pathToSave));
+            tracer = started;
+            mailbox.run(() -> chip8.setTracer(started));
+            return true;
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not create the trace", "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+
+    // Detach the tracer, the writer finishes compressing in the background
+    private void stopTrace() {
+        if (tracer == null)
+            return;
+        final Tracer stopped = tracer;
+        tracer = null;
+
+        mailbox.run(() -> {
+            chip8.setTracer(null);
+            stopped.finish();
+        }).thenRunAsync(() -> {
+            try {
+                stopped.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }).whenComplete((ignored, error) -> {
+            if (error != null)
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Could not write the trace", "Error", JOptionPane.ERROR_MESSAGE));
+        });
+    }
+
+    // Write the last profile as an annotated listing, the listing is built on the emulation thread
+    private void exportProfile() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Export profile");
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                "Profile listing", "txt"));
+
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        String pathToSave = chooser.getSelectedFile().getAbsolutePath();
+        if (!pathToSave.endsWith(".txt"))
+            pathToSave += ".txt";
+        final Path path = Paths.get(pathToSave);
+
+        mailbox.call(() -> {
+            if (profiler == null)
+                return null;
+
+            StringWriter listing = new StringWriter();
+            profiler.writeListing(listing, chip8);
+            return listing.toString();
+        }).thenAcceptAsync(listing -> {
+            if (listing == null)
+                throw new IllegalStateException("Nothing was profiled");
+
+            try {
+                Files.write(path, listing.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }).whenComplete((ignored, error) -> {
+            if (error != null)
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        error.getCause() instanceof IllegalStateException
+                                ? "Start profiling first" : "Could not write the profile",
+                        "Error", JOptionPane.ERROR_MESSAGE));
+        });
+    }
+
+    /**
+     * Machine state shown by the debugger, filled on the emulation thread
+     *
+     * Only fields whose stamp moved since the last capture are read, the rest keep the values already shown.
+     */
+    private static final class View {
+        // Bit per stamped field that moved, indexed like the STAMP constants of Chip8 and the register fields
+        private int changed;
+        private boolean rowsChanged;
+        private final long[] stamps = new long[Chip8.STAMPS];
+        private final int[] values = new int[Chip8.STAMP_MEMORY];
+
+        private int pc;
+        private final int[] opcodes = new int[ROWS];
+        private final int[] hits = new int[ROWS];
+        private int maxHits;
+        private Disassembly disassembly;
+
+        private View() {
+            // Everything has moved for the first capture
+            Arrays.fill(stamps, -1);
+        }
+
+        private void fill(Chip8 chip8, Profiler profiler, boolean profileChanged) {
+            changed = 0;
+            for (int field = 0; field < Chip8.STAMPS; field++) {
+                long stamp = chip8.getStamp(field);
+                if (stamp != stamps[field]) {
+                    stamps[field] = stamp;
+                    changed |= 1 << field;
+                }
+            }
+
+            if (moved(Chip8.STAMP_PC))
+                values[Chip8.STAMP_PC] = pc = chip8.getPc() & 0xFFFF;
+            if (moved(Chip8.STAMP_INDEX))
+                values[Chip8.STAMP_INDEX] = chip8.getIndex() & 0xFFFF;
+            byte[] registers = chip8.getV();
+            for (int i = 0; i < registers.length; i++)
+                if (moved(Chip8.STAMP_REGISTERS + i))
+                    values[Chip8.STAMP_REGISTERS + i] = registers[i] & 0xFF;
+            if (moved(Chip8.STAMP_DELAY_TIMER))
+                values[Chip8.STAMP_DELAY_TIMER] = chip8.getDelayTimer() & 0xFF;
+            if (moved(Chip8.STAMP_SOUND_TIMER))
+                values[Chip8.STAMP_SOUND_TIMER] = chip8.getSoundTimer() & 0xFF;
+
+            // Rows follow the PC and the code, hits also change while the machine is being profiled
+            rowsChanged = moved(Chip8.STAMP_PC) || moved(Chip8.STAMP_MEMORY) || profileChanged
+                    || profiler != null && chip8.getProfiler() == profiler;
+            if (!rowsChanged)
+                return;
+
+            disassembly = chip8.getDisassembly();
+            Memory memory = chip8.getMemory();
+            for (int row = 0; row < ROWS; row++) {
+                int address = pc + (row - PC_ROW) * 2;
+                opcodes[row] = address >= 0 && address < Memory.SIZE - 1 ? memory.readWord(address) : -1;
+                hits[row] = profiler == null ? 0 : profiler.hits(address);
+            }
+            maxHits = profiler == null ? 0 : profiler.getMaxHits();
+        }
+
+        private boolean moved(int field) {
+            return (changed & 1 << field) != 0;
+        }
+    }
+
+    /**
+     * Stamp the state of the finished frame and make it visible to {@link #refresh()}, runs on the emulation thread
+     * once per frame
+     */
+    public void publish() {
+        publishedStamp = chip8.stamp();
+        Profiler counting = chip8.getProfiler();
+        publishedHits = counting == null ? 0 : counting.getTotal();
+    }
+
+    /**
+     * Ask the emulation thread for the machine state and show it once it arrives, runs on the EDT
+     *
+     * Nothing is posted while no field of the machine has changed since the last capture.
+     */
+    public void refresh() {
+        long stamp = publishedStamp;
+        long hits = publishedHits;
+        if (capturing || stamp == requestedStamp && hits == requestedHits)
+            return;
+        capturing = true;
+        requestedStamp = stamp;
+        requestedHits = hits;
+
+        mailbox.post(captureCommand);
+    }
+
+    // Runs on the emulation thread
+    private void capture() {
+        view.fill(chip8, profiler, profileChanged);
+        profileChanged = false;
+        SwingUtilities.invokeLater(showCommand);
+    }
+
+    // Update the fields whose stamp moved since they were last shown
+    private void showView() {
+        capturing = false;
+
+        for (int field = 0; field < registerValues.length; field++)
+            if (view.moved(field))
+                showRegister(field, view.values[field]);
+
+        if (!view.rowsChanged)
+            return;
+
+        // Only rows whose address or opcode changed are updated and repainted
+        // Mnemonics come from the analysis of the loaded program unless the code was rewritten since
+        for (int row = 0; row < ROWS; row++) {
+            int opcode = view.opcodes[row];
+            int address = opcode < 0 ? -1 : view.pc + (row - PC_ROW) * 2;
+
+            int hits = view.hits[row];
+            float heat = hits == 0 ? 0 : (float) (Math.log1p(hits) / Math.log1p(view.maxHits));
+
+            if (address == rowAddress[row] && opcode == rowOpcode[row] && hits == rowHits[row] && heat == rowHeat[row])
+                continue;
+            rowAddress[row] = address;
+            rowOpcode[row] = opcode;
+            rowHits[row] = hits;
+            rowHeat[row] = heat;
+
+            rows[row][0] = opcode < 0 ? null : HEX_ADDRESS[address];
+            rows[row][1] = opcode < 0 ? null : hex16(opcode);
+            rows[row][2] = opcode < 0 ? null : view.disassembly.describe(address, opcode);
+            rows[row][3] = hits == 0 ? null : String.valueOf(hits);
+            disassemblyModel.fireTableRowsUpdated(row, row);
+        }
+    }
+
+    private void showRegister(int field, int value) {
+        if (shownRegisters[field] != value) {
+            shownRegisters[field] = value;
+            registerValues[field].setText(field < 2 ? hex16(value) : HEX_BYTE[value]);
+        }
+    }
+
+    // Refresh only while the window is shown
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+
+        if (visible) {
+            refresh();
+            refreshTimer.start();
+        } else {
+            refreshTimer.stop();
+        }
+    }
+
+    // Table backed by the rows array, cells are only replaced when their row changes
+    private class DisassemblyModel extends AbstractTableModel {
+        private String[] columnNames;
+
+        public int getRowCount() {
+            return ROWS;
+        }
+
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        public Object getValueAt(int row, int column) {
+            return rows[row][column];
         }
     }
 }
@@ -1,10 +1,13 @@
 package com.github.riku32.chippy8;
 
 import lombok.Getter;
-import lombok.Setter;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 
 public class Display extends JPanel {
     // The size of each pixel on the rendered screen
@@ -13,47 +16,98 @@ public class Display extends JPanel {
     private static final int WIDTH = 64 * SCALE;
     private static final int HEIGHT = 32 * SCALE;
 
-    @Setter
-    private byte[] videoMemory;
+    // Finished frames from the emulation thread
+    private FrameExchange frames;
+
+    // Screen at one pixel per CHIP-8 pixel, one bit per pixel so a framebuffer row is 8 bytes of the raster
+    private final WritableRaster raster;
+    private final byte[] pixels;
+    private BufferedImage image;
 
     public Dimension getPreferredSize() {
         return new Dimension(WIDTH, HEIGHT);
     }
 
-    @Setter
     @Getter
     private Color foreground;
 
-    @Setter
     @Getter
     private Color background;
 
-    public Display(byte[] videoMemory, Color foreground, Color background) {
-        this.videoMemory = videoMemory;
+    public Display(FrameExchange frames, Color foreground, Color background) {
+        this.frames = frames;
         this.foreground = foreground;
         this.background = background;
+
+        this.image = new BufferedImage(64, 32, BufferedImage.TYPE_BYTE_BINARY, palette());
+        this.raster = image.getRaster();
+        this.pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+
         setIgnoreRepaint(true);
     }
 
-    public Display(byte[] videoMemory) {
-        this(videoMemory, Color.WHITE, Color.BLACK);
+    public Display(FrameExchange frames) {
+        this(frames, Color.WHITE, Color.BLACK);
+    }
+
+    /**
+     * Take frames from another exchange, it has to deliver every row with its first frame
+     *
+     * @param frames exchange this display is the only consumer of
+     */
+    public void setFrames(FrameExchange frames) {
+        this.frames = frames;
+    }
+
+    public void setForeground(Color foreground) {
+        this.foreground = foreground;
+        recolor();
+    }
+
+    public void setBackground(Color background) {
+        this.background = background;
+        recolor();
     }
 
-    private void blit(Graphics g) {
-        for (int y = 0; y < 32; y++) {
-            for (int x = 0; x < 64; ++x) {
-                g.setColor(videoMemory[(y * 64) + x] == 0 ? background : foreground);
-                g.fillRect(x * SCALE, y * SCALE, SCALE, SCALE);
-            }
+    /**
+     * Draw the newest finished frame at the display scale, the last one is drawn again if there is no newer frame
+     *
+     * @param g graphics to draw to
+     */
+    public void blit(Graphics g) {
+        FrameExchange.Frame frame = frames.acquire();
+        int rows = frame == null ? 0 : frame.getDirtyRows();
+        for (int y = 0; rows != 0; y++, rows >>>= 1) {
+            if ((rows & 1) == 0)
+                continue;
+
+            long row = frame.getRows()[y];
+            for (int i = 0; i < 8; i++)
+                pixels[y * 8 + i] = (byte) (row >>> (56 - i * 8));
         }
+
+        g.drawImage(image, 0, 0, WIDTH, HEIGHT, null);
+    }
+
+    // Swap the palette, the pixels are shared with the new image
+    // Also called by the JPanel constructor to install the look and feel colors, before the image exists
+    private void recolor() {
+        if (raster != null)
+            image = new BufferedImage(palette(), raster, false, null);
+    }
+
+    private IndexColorModel palette() {
+        Color off = background == null ? Color.BLACK : background;
+        Color on = foreground == null ? Color.WHITE : foreground;
+        return new IndexColorModel(1, 2,
+                new byte[]{(byte) off.getRed(), (byte) on.getRed()},
+                new byte[]{(byte) off.getGreen(), (byte) on.getGreen()},
+                new byte[]{(byte) off.getBlue(), (byte) on.getBlue()});
     }
 
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
 
-        g.setColor(background);
-        g.fillRect(0, 0, WIDTH, HEIGHT);
-
         blit(g);
 
         g.dispose();
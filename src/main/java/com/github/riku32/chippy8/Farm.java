@@ -0,0 +1,355 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.Keypad;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs many independent machines in real time on a small pool of carrier threads
+ *
+ * A clock thread marks every running session due once per 60hz frame. Carriers take due sessions one at a time
+ * and run one frame of cycles for each, so a session never holds a carrier for longer than a frame. The session
+ * that has used the least weighted CPU time goes first, a busy ROM can not starve a cheap one. A session over its
+ * CPU quota skips frames until its next one second accounting window.
+ *
+ * A machine is only touched by the carrier running it, other threads reach it through {@link Session#call(Function)}.
+ */
+public class Farm implements Closeable {
+    // Frames a session may fall behind before the oldest ones are dropped
+    private static final int MAX_DUE = 2;
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    public static final int DEFAULT_WEIGHT = 100;
+
+    /**
+     * One machine hosted by the farm
+     */
+    public static final class Session {
+        @Getter
+        private final int id;
+
+        private final Chip8 chip8;
+        private final AtomicInteger keys = new AtomicInteger();
+
+        // Commands run on the carrier before the next frame of the session, also while paused
+        private final Mailbox mailbox = new Mailbox();
+
+        private final List<FrameExchange> frameConsumers = new CopyOnWriteArrayList<>();
+
+        @Getter
+        private final int frequency;
+        private long cycleRemainder;
+
+        // Share of CPU against other sessions, DEFAULT_WEIGHT is an even share
+        @Getter
+        private volatile int weight = DEFAULT_WEIGHT;
+
+        // CPU time allowed per second in nanoseconds, 0 for no limit
+        @Getter
+        private volatile long quotaNanos;
+
+        @Getter
+        private volatile boolean paused;
+        private volatile boolean destroyed;
+
+        // What the machine threw, the session is destroyed when it fails
+        @Getter
+        private volatile RuntimeException failure;
+
+        // Frames the clock marked and the carriers have not run yet
+        private final AtomicInteger due = new AtomicInteger();
+        // Due or being run by a carrier, a session is never queued twice
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // Weighted CPU time, orders the run queue, only changed while scheduled
+        private long virtualNanos;
+
+        // Accounting, written by the carrier running the session
+        @Getter
+        private volatile long cpuNanos;
+        @Getter
+        private volatile long frames;
+        @Getter
+        private volatile long cycles;
+        // Frames skipped for being over quota
+        @Getter
+        private volatile long throttledFrames;
+        private long windowStart;
+        private long windowNanos;
+
+        // Frames dropped because the carriers fell behind
+        private final AtomicLong lateFrames = new AtomicLong();
+
+        private Session(int id, byte[] rom, int frequency) {
+            this.id = id;
+            this.frequency = frequency;
+
+            Keypad keypad = new Keypad() {
+                public boolean pressed(int key) {
+                    return (keys.get() >> key & 1) != 0;
+                }
+
+                public int state() {
+                    return keys.get();
+                }
+            };
+            this.chip8 = new Chip8(keypad);
+            chip8.loadRom(rom);
+        }
+
+        /**
+         * Hold keys, seen from the next instruction on
+         *
+         * @param keys held, bit n is key n
+         */
+        public void setKeys(int keys) {
+            this.keys.set(keys & 0xFFFF);
+        }
+
+        public void setWeight(int weight) {
+            if (weight <= 0)
+                throw new IllegalArgumentException("Weight has to be positive");
+            this.weight = weight;
+        }
+
+        /**
+         * Limit CPU use
+         *
+         * @param cores share of one core per second, 0 for no limit
+         */
+        public void setQuota(double cores) {
+            if (cores < 0)
+                throw new IllegalArgumentException("Quota can not be negative");
+            this.quotaNanos = (long) (cores * WINDOW_NANOS);
+        }
+
+        public void setPaused(boolean paused) {
+            this.paused = paused;
+        }
+
+        public boolean isDestroyed() {
+            return destroyed;
+        }
+
+        public long getLateFrames() {
+            return lateFrames.get();
+        }
+
+        /**
+         * Run a command on the machine before its next frame, paused sessions still run commands
+         *
+         * @param command given the machine
+         * @param <T> result type
+         * @return result of the command, or what it threw
+         */
+        public <T> CompletableFuture<T> call(Function<Chip8, T> command) {
+            return mailbox.call(() -> command.apply(chip8));
+        }
+
+        public CompletableFuture<Void> run(Consumer<Chip8> command) {
+            return mailbox.run(() -> command.accept(chip8));
+        }
+
+        /**
+         * Receive every frame the session runs, dropped frames carry their changed rows over
+         *
+         * @return exchange to take frames from, one consumer per exchange
+         */
+        public FrameExchange subscribe() {
+            FrameExchange exchange = new FrameExchange();
+            frameConsumers.add(exchange);
+            return exchange;
+        }
+
+        public void unsubscribe(FrameExchange exchange) {
+            frameConsumers.remove(exchange);
+        }
+
+        // Run on a carrier, one frame of cycles unless paused or over quota
+        private void slice(long now) {
+            mailbox.drain();
+            if (paused || destroyed) {
+                due.set(0);
+                return;
+            }
+
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now;
+                windowNanos = 0;
+            }
+
+            long quota = quotaNanos;
+            if (quota > 0 && windowNanos >= quota) {
+                throttledFrames += due.getAndSet(0);
+                return;
+            }
+
+            cycleRemainder += frequency;
+            long frameCycles = cycleRemainder / FrameScheduler.FRAME_RATE;
+            cycleRemainder %= FrameScheduler.FRAME_RATE;
+
+            for (long cycle = 0; cycle < frameCycles; cycle++)
+                chip8.cycle();
+            chip8.tickTimers();
+
+            int dirtyRows = chip8.takeDirtyRows();
+            for (FrameExchange exchange : frameConsumers)
+                exchange.publish(chip8.getFrameBuffer(), dirtyRows);
+
+            long elapsed = System.nanoTime() - now;
+            cpuNanos += elapsed;
+            windowNanos += elapsed;
+            virtualNanos += elapsed * DEFAULT_WEIGHT / weight;
+            cycles += frameCycles;
+            frames++;
+            due.decrementAndGet();
+        }
+    }
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final PriorityBlockingQueue<Session> runQueue = new PriorityBlockingQueue<>(64,
+            Comparator.comparingLong(session -> session.virtualNanos));
+
+    // Virtual time of the session taken last, sessions coming back from idle start here instead of far behind
+    private volatile long virtualNow;
+
+    private final Thread clock;
+    private final List<Thread> carriers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Start the clock and carrier threads
+     *
+     * @param carrierCount threads running sessions, usually the number of cores
+     */
+    public Farm(int carrierCount) {
+        if (carrierCount <= 0)
+            throw new IllegalArgumentException("At least one carrier is needed");
+
+        clock = new Thread(this::tick, "Farm clock");
+        clock.setDaemon(true);
+        clock.start();
+
+        for (int i = 0; i < carrierCount; i++) {
+            Thread carrier = new Thread(this::carry, "Farm carrier " + i);
+            carrier.setDaemon(true);
+            carrier.start();
+            carriers.add(carrier);
+        }
+    }
+
+    /**
+     * Host a new machine, it starts running with the next frame
+     *
+     * @param rom to load
+     * @param frequency cycles per second
+     * @return session
+     */
+    public Session create(byte[] rom, int frequency) {
+        if (frequency <= 0)
+            throw new IllegalArgumentException("Frequency has to be positive");
+
+        Session session = new Session(nextId.getAndIncrement(), rom, frequency);
+        session.virtualNanos = virtualNow;
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Stop and forget a session, a frame already running finishes first
+     *
+     * @param session to destroy
+     */
+    public void destroy(Session session) {
+        session.destroyed = true;
+        sessions.remove(session);
+    }
+
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /**
+     * Stop every thread, sessions are not run anymore
+     */
+    public void close() {
+        running = false;
+        clock.interrupt();
+        for (Thread carrier : carriers)
+            carrier.interrupt();
+    }
+
+    // Clock thread, marks sessions due once per frame
+    private void tick() {
+        FrameScheduler scheduler = new FrameScheduler();
+        while (running) {
+            int frames = scheduler.awaitFrames();
+
+            for (Session session : sessions) {
+                if (session.paused) {
+                    // Paused sessions only get a turn to run their commands
+                    if (!session.mailbox.isEmpty())
+                        schedule(session);
+                    continue;
+                }
+
+                int due = session.due.addAndGet(frames);
+                if (due > MAX_DUE) {
+                    session.due.addAndGet(MAX_DUE - due);
+                    session.lateFrames.addAndGet(due - MAX_DUE);
+                }
+                schedule(session);
+            }
+        }
+    }
+
+    private void schedule(Session session) {
+        if (session.scheduled.compareAndSet(false, true)) {
+            session.virtualNanos = Math.max(session.virtualNanos, virtualNow);
+            runQueue.add(session);
+        }
+    }
+
+    // Carrier thread, runs one frame of the least served due session at a time
+    private void carry() {
+        try {
+            while (running) {
+                Session session = runQueue.take();
+                virtualNow = session.virtualNanos;
+
+                // A ROM that crashes its machine only takes its own session down
+                try {
+                    session.slice(System.nanoTime());
+                } catch (RuntimeException e) {
+                    session.failure = e;
+                    destroy(session);
+                }
+
+                // Behind sessions go back in line after one frame, so others get a turn in between
+                session.scheduled.set(false);
+                if (session.due.get() > 0 && !session.paused && !session.destroyed
+                        && session.scheduled.compareAndSet(false, true))
+                    runQueue.add(session);
+            }
+        } catch (InterruptedException e) {
+            // Farm closed
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.riku32.chippy8;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands finished frames from the emulation thread to one consumer without either side ever waiting
+ *
+ * Three frame buffers rotate between the producer, the consumer and a shared middle slot. The producer fills its
+ * buffer and swaps it with the middle, the consumer swaps the middle with its own buffer when a newer frame is
+ * there. Both swaps are a single atomic exchange, so the consumer always holds a complete frame that nobody is
+ * writing to. Frames the consumer never picked up are dropped, their changed rows carry over to the next one.
+ *
+ * One exchange serves one consumer, every consumer gets its own.
+ */
+public class FrameExchange {
+    // Set in the state word when the middle slot holds a frame the consumer has not taken yet
+    private static final int FRESH = 4;
+    // Set in the initial state word only, nothing was published yet so the consumer has not taken anything either
+    private static final int UNTAKEN = 8;
+
+    /**
+     * A finished frame
+     */
+    public static final class Frame {
+        // Framebuffer rows, leftmost pixel in the most significant bit
+        @Getter
+        private final long[] rows = new long[32];
+
+        // Rows changed since the frame the consumer took before this one, bit n is row n
+        // May include rows that did not change, never leaves one out
+        @Getter
+        private int dirtyRows;
+
+        // Number of the frame, counting every published frame
+        @Getter
+        private long sequence;
+    }
+
+    private final Frame[] frames = {new Frame(), new Frame(), new Frame()};
+
+    // Index of the middle slot, with FRESH set while it is unread
+    private final AtomicInteger state = new AtomicInteger(1 | UNTAKEN);
+
+    // Only touched by the producer
+    private int back = 0;
+    // Rows changed since the last frame the consumer may have taken, everything until the first frame is taken
+    private int pendingRows = -1;
+    private long sequence;
+
+    // Only touched by the consumer
+    private int front = 2;
+
+    /**
+     * Publish a finished frame, called by the producer only
+     *
+     * @param rows framebuffer rows to copy
+     * @param dirtyRows rows changed since the previous published frame
+     */
+    public void publish(long[] rows, int dirtyRows) {
+        Frame frame = frames[back];
+        System.arraycopy(rows, 0, frame.rows, 0, frame.rows.length);
+        pendingRows |= dirtyRows;
+        frame.dirtyRows = pendingRows;
+        frame.sequence = sequence++;
+
+        int previous = state.getAndSet(back | FRESH);
+        back = previous & 3;
+
+        // The previous frame was taken, the next frame only needs rows changed since then
+        // The consumer could still skip this one, so its rows stay pending
+        if ((previous & (FRESH | UNTAKEN)) == 0)
+            pendingRows = dirtyRows;
+    }
+
+    /**
+     * Take the newest frame, called by the consumer only
+     * The frame stays valid and unchanged until the next call
+     *
+     * @return newest frame, or null if nothing was published since the last call
+     */
+    public Frame acquire() {
+        if ((state.get() & FRESH) == 0)
+            return null;
+
+        front = state.getAndSet(front) & 3;
+        return frames[front];
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.riku32.chippy8;
+
+import lombok.Getter;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the emulation loop at 60 frames per second
+ *
+ * Each frame's cycles are run in one batch, then the thread parks until the next frame deadline.
+ * Deadlines are a fixed grid so oversleeping one frame shortens the wait for the next and the rate never drifts.
+ * In low power mode the thread only wakes every few frames and runs all frames that came due at once.
+ */
+public class FrameScheduler {
+    public static final int FRAME_RATE = 60;
+    private static final long FRAME_NANOS = 1000000000L / FRAME_RATE;
+
+    // Frames run per wake up in low power mode
+    private static final int LOW_POWER_BATCH = 6;
+
+    // Falling further behind than this (a stall or a suspended host) drops the missed frames instead of catching up
+    private static final int MAX_CATCH_UP = 10;
+
+    // parkNanos tends to oversleep slightly, wake this early and yield for the rest
+    private static final long SPIN_NANOS = 200000;
+
+    private long deadline;
+
+    @Getter
+    private volatile boolean lowPower;
+
+    // Frame start lateness, reset by jitterReport()
+    private long lateTotal;
+    private long lateSquares;
+    private long lateMax;
+    private int lateFrames;
+
+    public FrameScheduler() {
+        this.deadline = System.nanoTime();
+    }
+
+    /**
+     * Wake less often, frames are still run at the same rate on average
+     *
+     * @param lowPower enabled
+     */
+    public void setLowPower(boolean lowPower) {
+        this.lowPower = lowPower;
+    }
+
+    /**
+     * Wait for the next frame deadline
+     *
+     * @return frames due, more than one in low power mode or after falling behind
+     */
+    public int awaitFrames() {
+        int batch = lowPower ? LOW_POWER_BATCH : 1;
+        long wake = deadline + (batch - 1) * FRAME_NANOS;
+
+        long now;
+        while ((now = System.nanoTime()) < wake - SPIN_NANOS)
+            LockSupport.parkNanos(wake - SPIN_NANOS - now);
+        while ((now = System.nanoTime()) < wake)
+            Thread.yield();
+
+        int due = (int) ((now - deadline) / FRAME_NANOS) + 1;
+        if (due > MAX_CATCH_UP) {
+            deadline = now;
+            due = 1;
+        }
+
+        // Lateness only means something when waking for a single frame
+        if (batch == 1)
+            recordLateness(now - wake);
+
+        deadline += due * FRAME_NANOS;
+        return due;
+    }
+
+    private synchronized void recordLateness(long late) {
+        lateTotal += late;
+        lateSquares += late / 1000 * (late / 1000);
+        lateMax = Math.max(lateMax, late);
+        lateFrames++;
+    }
+
+    /**
+     * Frame start lateness since the last report
+     *
+     * @return mean, standard deviation and worst case in milliseconds, or null if no frames were timed
+     */
+    public synchronized String jitterReport() {
+        if (lateFrames == 0)
+            return null;
+
+        double mean = lateTotal / 1e6 / lateFrames;
+        double meanMicros = lateTotal / 1e3 / lateFrames;
+        double deviation = Math.sqrt(Math.max(0, (double) lateSquares / lateFrames - meanMicros * meanMicros)) / 1e3;
+        String report = String.format(Locale.ROOT, "jitter %.2f ms +/- %.2f, worst %.2f ms", mean, deviation, lateMax / 1e6);
+
+        lateTotal = lateSquares = lateMax = 0;
+        lateFrames = 0;
+        return report;
+    }
+}
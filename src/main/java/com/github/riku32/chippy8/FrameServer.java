@@ -0,0 +1,461 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Keypad;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams frames to TCP and WebSocket clients and takes keypad input back
+ *
+ * A single thread serves every client from a non-blocking selector. A frame is sent as the XOR of every row that
+ * changed against the frame the client was sent last, so a client only has to XOR them into its own copy.
+ * A client that has not taken the last frame yet is skipped, once it catches up it is sent a single delta to the
+ * newest frame, frames are never queued behind a slow client.
+ *
+ * A TCP client starts by sending "C8FS", a WebSocket client with the usual upgrade request. Messages then go in
+ * both directions, as binary WebSocket messages for WebSocket clients, big endian
+ * <pre>
+ * frame, from the server   'F'   changed rows (32-bit, bit n is row n)   XOR of each changed row (64-bit, lowest first)
+ * keys, from a client      'K'   keys held (16-bit, bit n is key n)
+ * </pre>
+ * The machine sees the keys of all clients combined.
+ */
+public class FrameServer implements Closeable {
+    private static final int HELLO = 0x43384653;
+    private static final int GET = 0x47455420;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static final byte FRAME = 'F';
+    static final byte KEYS = 'K';
+
+    // Largest upgrade request and the most a client may have unread
+    private static final int BUFFER_SIZE = 4096;
+
+    // Wait after a failed accept or select, the failure usually lasts a while and would otherwise spin the loop
+    private static final long RETRY_MILLIS = 50;
+
+    private static final class Client {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // Sent the hello or upgrade request
+        private boolean ready;
+        private boolean websocket;
+
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        // Kept flipped, whatever remains has not been sent yet
+        private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // Frame as the client has it once everything sent arrived
+        private final long[] shown = new long[32];
+        private long shownSequence = -1;
+
+        private int keys;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+            out.flip();
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final FrameExchange frames = new FrameExchange();
+    private final AtomicInteger keys = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Only touched by the server thread
+    private final List<Client> clients = new ArrayList<>();
+    private FrameExchange.Frame latest;
+
+    /**
+     * Listen for clients, frames are only served once started
+     *
+     * @param address to bind, usually loopback
+     * @throws IOException if the address can not be bound
+     */
+    public FrameServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+
+        thread = new Thread(this::run, "Frame server");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Address the server listens on, with the port chosen if bound to port 0
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Keys held by all clients combined
+     *
+     * @return keypad for the served machine
+     */
+    public Keypad keypad() {
+        return new Keypad() {
+            public boolean pressed(int key) {
+                return (keys.get() >> key & 1) != 0;
+            }
+
+            public int state() {
+                return keys.get();
+            }
+        };
+    }
+
+    /**
+     * Hand a finished frame to the clients, only called by the emulation thread and never waits
+     *
+     * @param rows framebuffer rows
+     * @param dirtyRows rows changed since the previous frame
+     */
+    public void publish(long[] rows, int dirtyRows) {
+        frames.publish(rows, dirtyRows);
+        selector.wakeup();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+
+        if (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Client client : clients)
+            client.channel.close();
+        server.close();
+        selector.close();
+    }
+
+    // Server thread, only stops once closed
+    private void run() {
+        try {
+            while (running) {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    System.err.printf("Frame server error: %s%n", e.getMessage());
+                    retryLater();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Closed under the loop
+        }
+    }
+
+    // One pass of the selector loop
+    private void serve() throws IOException {
+        selector.select();
+
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+            SelectionKey key = selected.next();
+            selected.remove();
+            if (!key.isValid())
+                continue;
+
+            // A failed accept, such as running out of file descriptors, only loses that client
+            if (key.isAcceptable()) {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    System.err.printf("Frame server could not accept a client: %s%n", e.getMessage());
+                    retryLater();
+                }
+                continue;
+            }
+
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isReadable())
+                    read(client);
+                if (key.isValid() && key.isWritable())
+                    flush(client);
+            } catch (IOException e) {
+                disconnect(client);
+            }
+        }
+
+        FrameExchange.Frame frame = frames.acquire();
+        if (frame != null)
+            latest = frame;
+
+        if (latest != null) {
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                Client client = clients.get(i);
+                try {
+                    send(client);
+                } catch (IOException e) {
+                    disconnect(client);
+                }
+            }
+        }
+    }
+
+    private void retryLater() {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+
+        Client client = new Client(channel);
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        clients.add(client);
+    }
+
+    private void disconnect(Client client) {
+        clients.remove(client);
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+
+        if (client.keys != 0)
+            updateKeys();
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.in) < 0)
+            throw new EOFException();
+
+        client.in.flip();
+        if (!client.ready)
+            handshake(client);
+        if (client.ready) {
+            if (client.websocket)
+                readWebSocket(client);
+            else
+                readMessages(client);
+        }
+        client.in.compact();
+
+        // Nothing could be taken out of a full buffer, the client is not speaking the protocol
+        if (!client.in.hasRemaining())
+            throw new IOException("Client sent too much");
+    }
+
+    private void handshake(Client client) throws IOException {
+        ByteBuffer in = client.in;
+        if (in.remaining() < 4)
+            return;
+
+        int hello = in.getInt(in.position());
+        if (hello == HELLO) {
+            in.position(in.position() + 4);
+            client.ready = true;
+            return;
+        }
+        if (hello != GET)
+            throw new IOException("Unknown client");
+
+        String request = new String(in.array(), in.position(), in.remaining(), StandardCharsets.ISO_8859_1);
+        int end = request.indexOf("\r\n\r\n");
+        if (end < 0)
+            return;
+
+        String webSocketKey = null;
+        for (String line : request.substring(0, end).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("sec-websocket-key"))
+                webSocketKey = line.substring(colon + 1).trim();
+        }
+        if (webSocketKey == null)
+            throw new IOException("Not a WebSocket upgrade");
+
+        in.position(in.position() + end + 4);
+        client.websocket = true;
+        client.ready = true;
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + webSocketAccept(webSocketKey) + "\r\n\r\n";
+        client.out.clear();
+        client.out.put(response.getBytes(StandardCharsets.ISO_8859_1));
+        client.out.flip();
+        flush(client);
+    }
+
+    static String webSocketAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // TCP messages, anything after the last complete message stays in the buffer
+    private void readMessages(Client client) throws IOException {
+        ByteBuffer in = client.in;
+        while (in.remaining() >= 3) {
+            if (in.get() != KEYS)
+                throw new IOException("Unknown message");
+            setKeys(client, in.getShort() & 0xFFFF);
+        }
+    }
+
+    // WebSocket messages, anything after the last complete message stays in the buffer
+    private void readWebSocket(Client client) throws IOException {
+        ByteBuffer in = client.in;
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int opcode = in.get(start) & 0x0F;
+            boolean masked = (in.get(start + 1) & 0x80) != 0;
+            int length = in.get(start + 1) & 0x7F;
+
+            int header = 2;
+            if (length == 126) {
+                if (in.remaining() < 4)
+                    return;
+                length = in.getShort(start + 2) & 0xFFFF;
+                header += 2;
+            } else if (length == 127) {
+                throw new IOException("Message too large");
+            }
+            if (masked)
+                header += 4;
+            if (in.remaining() < header + length)
+                return;
+
+            byte[] payload = new byte[length];
+            in.position(start + header);
+            in.get(payload);
+            if (masked) {
+                for (int i = 0; i < length; i++)
+                    payload[i] ^= in.get(start + header - 4 + (i & 3));
+            }
+
+            // Close ends the connection, text, ping and pong are ignored
+            if (opcode == 8)
+                throw new EOFException();
+            if (opcode == 2 && length == 3 && payload[0] == KEYS)
+                setKeys(client, (payload[1] & 0xFF) << 8 | payload[2] & 0xFF);
+        }
+    }
+
+    private void setKeys(Client client, int keys) {
+        if (client.keys != keys) {
+            client.keys = keys;
+            updateKeys();
+        }
+    }
+
+    private void updateKeys() {
+        int combined = 0;
+        for (Client client : clients)
+            combined |= client.keys;
+        keys.set(combined);
+    }
+
+    // Send the newest frame unless the client is still taking an older one
+    private void send(Client client) throws IOException {
+        if (!client.ready || client.out.hasRemaining() || client.shownSequence == latest.getSequence())
+            return;
+        client.shownSequence = latest.getSequence();
+
+        long[] rows = latest.getRows();
+        int changed = 0;
+        for (int row = 0; row < rows.length; row++)
+            if (rows[row] != client.shown[row])
+                changed |= 1 << row;
+        if (changed == 0)
+            return;
+
+        ByteBuffer out = client.out;
+        out.clear();
+
+        int length = 5 + Integer.bitCount(changed) * 8;
+        if (client.websocket) {
+            out.put((byte) 0x82);
+            if (length < 126) {
+                out.put((byte) length);
+            } else {
+                out.put((byte) 126);
+                out.putShort((short) length);
+            }
+        }
+
+        out.put(FRAME);
+        out.putInt(changed);
+        for (int row = 0; row < rows.length; row++) {
+            if ((changed >> row & 1) != 0) {
+                out.putLong(rows[row] ^ client.shown[row]);
+                client.shown[row] = rows[row];
+            }
+        }
+        out.flip();
+
+        flush(client);
+    }
+
+    // Write what the socket takes, wait for it to become writable for the rest
+    private void flush(Client client) throws IOException {
+        client.channel.write(client.out);
+
+        int interest = client.out.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ;
+        if (client.key.interestOps() != interest)
+            client.key.interestOps(interest);
+    }
+}
@@ -0,0 +1,490 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.Profiler;
+import com.github.riku32.chippy8.VM.Recompiler;
+import com.github.riku32.chippy8.VM.Tracer;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs a ROM without any window as fast as the host allows
+ * Used for ROM regression and performance jobs on machines without a display
+ */
+public class Headless {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: chippy8 --headless [options] <rom>",
+            "       chippy8 --headless [options] --play <movie>",
+            "       chippy8 --headless --print-trace <trace>",
+            "  --frames <n>         Run n frames (default 600)",
+            "  --cycles <n>         Run n cycles instead of frames",
+            "  --frequency <hz>     Cycles per second of emulated time (default 600)",
+            "  --seed <n>           Seed of the RND instruction, runs with the same seed hash the same (default 0)",
+            "  --keys <script>      Scripted keypad input, see ScriptedKeypad",
+            "  --hash-every <n>     Print the framebuffer hash every n frames",
+            "  --listing <file>     Write a disassembly listing of the ROM and exit",
+            "  --record <file>      Record the run as a movie",
+            "  --audio <file>       Write the beeper to a WAV file",
+            "  --profile <file>     Write an annotated listing with the times each instruction ran",
+            "  --trace <file>       Record every instruction run, print it with --print-trace",
+            "  --play <file>        Replay a movie and stop at the first frame that differs",
+            "  --recompile          Use the block recompiler",
+            "  --lockstep           Check the recompiler against the interpreter",
+            "  --serve <port>       Run in real time and stream frames to local clients, see FrameServer",
+            "  --farm <n>           Run n copies of the ROM in real time for --frames frames and report CPU use",
+            "  --carriers <n>       Threads running the farm (default one per core)");
+
+    @Getter
+    private final Chip8 chip8;
+    private final ScriptedKeypad keypad;
+    private final Recompiler recompiler;
+
+    // Seed of RND, null for movies which start from a recorded generator state
+    private final Long seed;
+
+    // Cycles per second, frequencies that are not a multiple of 60 spread the remainder over frames like the window
+    private final int frequency;
+    private long cycleRemainder;
+
+    // Beeper output, one frame of samples per frame run
+    @Setter
+    private AudioSink audio = new NullAudioSink();
+
+    public Headless(byte[] rom, ScriptedKeypad keypad, int frequency, long seed, boolean recompile, boolean lockstep) {
+        this.keypad = keypad;
+        this.chip8 = new Chip8(keypad);
+        this.frequency = frequency;
+        this.seed = seed;
+
+        chip8.setSeed(seed);
+        chip8.loadRom(rom);
+        recompiler = recompile ? recompiler(lockstep) : null;
+    }
+
+    /**
+     * Set up a replay of a movie, frames have to be run with the recorded cycles
+     *
+     * @param movie to replay
+     * @param recompile use the block recompiler
+     * @param lockstep check the recompiler against the interpreter
+     * @throws IOException if the start state of the movie can not be loaded
+     */
+    public Headless(Movie movie, boolean recompile, boolean lockstep) throws IOException {
+        this.keypad = movie.keypad();
+        this.chip8 = new Chip8(keypad);
+        this.frequency = movie.getFrames() == 0 ? FrameScheduler.FRAME_RATE : movie.cycles(0) * FrameScheduler.FRAME_RATE;
+        this.seed = null;
+
+        chip8.loadState(movie.getStart());
+        recompiler = recompile ? recompiler(lockstep) : null;
+    }
+
+    private Recompiler recompiler(boolean lockstep) {
+        Recompiler recompiler = new Recompiler(chip8);
+        recompiler.setLockstep(lockstep);
+        return recompiler;
+    }
+
+    /**
+     * Run one 60hz frame worth of cycles
+     *
+     * @param frame index of the frame, drives the key script
+     * @return cycles run
+     */
+    public int frame(int frame) {
+        cycleRemainder += frequency;
+        int cycles = (int) (cycleRemainder / FrameScheduler.FRAME_RATE);
+        cycleRemainder %= FrameScheduler.FRAME_RATE;
+
+        frame(frame, cycles);
+        return cycles;
+    }
+
+    /**
+     * Run a 60hz frame with a given number of cycles
+     *
+     * @param frame index of the frame, drives the key script
+     * @param cycles to run before the timers tick
+     */
+    public void frame(int frame, int cycles) {
+        keypad.setFrame(frame);
+        run(cycles);
+        audio.frame(chip8.getSoundTimer() != 0);
+        chip8.tickTimers();
+    }
+
+    private void run(int cycles) {
+        if (recompiler != null) {
+            recompiler.run(cycles);
+        } else {
+            for (int i = 0; i < cycles; i++)
+                chip8.cycle();
+        }
+    }
+
+    /**
+     * Print the final machine state
+     *
+     * @param out stream to print to
+     */
+    public void printState(PrintStream out) {
+        out.printf("PC %04X  I %04X  SP %X  DT %02X  ST %02X%n",
+                chip8.getPc(), chip8.getIndex(), chip8.getSp(),
+                chip8.getDelayTimer() & 0xFF, chip8.getSoundTimer() & 0xFF);
+
+        byte[] registers = chip8.getV();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < registers.length; i++)
+            line.append(String.format("V%X %02X ", i, registers[i] & 0xFF));
+        out.println(line.toString().trim());
+
+        if (seed != null)
+            out.printf("Seed %d  Frame %016X%n", seed, chip8.frameHash());
+        else
+            out.printf("Frame %016X%n", chip8.frameHash());
+    }
+
+    public static void main(String[] args) throws IOException {
+        String romPath = null;
+        String keysPath = null;
+        String listingPath = null;
+        String recordPath = null;
+        String audioPath = null;
+        String playPath = null;
+        String profilePath = null;
+        String tracePath = null;
+        String printTracePath = null;
+        int servePort = -1;
+        int farmSessions = 0;
+        int carriers = Runtime.getRuntime().availableProcessors();
+        long frames = 600;
+        long cycles = -1;
+        int frequency = 600;
+        long seed = 0;
+        int hashEvery = 0;
+        boolean recompile = false;
+        boolean lockstep = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--frames":
+                        frames = Long.parseLong(args[++i]);
+                        break;
+                    case "--cycles":
+                        cycles = Long.parseLong(args[++i]);
+                        break;
+                    case "--frequency":
+                        frequency = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--keys":
+                        keysPath = args[++i];
+                        break;
+                    case "--listing":
+                        listingPath = args[++i];
+                        break;
+                    case "--record":
+                        recordPath = args[++i];
+                        break;
+                    case "--audio":
+                        audioPath = args[++i];
+                        break;
+                    case "--play":
+                        playPath = args[++i];
+                        break;
+                    case "--profile":
+                        profilePath = args[++i];
+                        break;
+                    case "--trace":
+                        tracePath = args[++i];
+                        break;
+                    case "--print-trace":
+                        printTracePath = args[++i];
+                        break;
+                    case "--serve":
+                        servePort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--farm":
+                        farmSessions = Integer.parseInt(args[++i]);
+                        break;
+                    case "--carriers":
+                        carriers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--hash-every":
+                        hashEvery = Integer.parseInt(args[++i]);
+                        break;
+                    case "--recompile":
+                        recompile = true;
+                        break;
+                    case "--lockstep":
+                        recompile = lockstep = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || romPath != null)
+                            throw new IllegalArgumentException(args[i]);
+                        romPath = args[i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            romPath = playPath = null;
+        }
+
+        if (printTracePath != null && romPath == null && playPath == null) {
+            OutputStreamWriter out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            Tracer.writeText(Paths.get(printTracePath), out);
+            out.flush();
+            return;
+        }
+
+        // Either a ROM or a movie, a movie brings its own start state
+        if ((romPath == null) == (playPath == null) || frequency <= 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        if (playPath != null) {
+            Movie movie = Movie.load(Paths.get(playPath));
+            Headless headless = new Headless(movie, recompile, lockstep);
+            Profiler profiler = profilePath == null ? null : headless.profile();
+            Tracer tracer = tracePath == null ? null : headless.trace(Paths.get(tracePath));
+            boolean matched;
+            try (AudioSink audio = audioPath == null ? new NullAudioSink() : new WavAudioSink(Paths.get(audioPath))) {
+                headless.setAudio(audio);
+                matched = headless.play(movie, hashEvery);
+            }
+            if (tracer != null)
+                headless.closeTrace(tracer);
+            if (profiler != null)
+                headless.writeProfile(profiler, Paths.get(profilePath));
+            if (!matched)
+                System.exit(2);
+            return;
+        }
+
+        byte[] rom = Files.readAllBytes(Paths.get(romPath));
+        if (servePort >= 0) {
+            serve(rom, servePort, frequency);
+            return;
+        }
+        if (farmSessions > 0) {
+            farm(rom, farmSessions, carriers, frequency, frames);
+            return;
+        }
+
+        ScriptedKeypad keypad = keysPath == null
+                ? new ScriptedKeypad()
+                : ScriptedKeypad.load(Paths.get(keysPath));
+
+        Headless headless = new Headless(rom, keypad, frequency, seed, recompile, lockstep);
+
+        if (listingPath != null) {
+            headless.chip8.getDisassembly().writeListing(Paths.get(listingPath));
+            return;
+        }
+
+        // A cycle count is run as whole frames plus the remainder so timers keep ticking
+        // After k frames floor(k * frequency / 60) cycles have run, take the most frames that fit in the count
+        long remainder = 0;
+        if (cycles >= 0) {
+            frames = (FrameScheduler.FRAME_RATE * (cycles + 1) - 1) / frequency;
+            remainder = cycles - frames * frequency / FrameScheduler.FRAME_RATE;
+        }
+
+        // Only whole frames are recorded
+        Movie movie = recordPath == null ? null : new Movie(headless.chip8.saveState());
+        Profiler profiler = profilePath == null ? null : headless.profile();
+        Tracer tracer = tracePath == null ? null : headless.trace(Paths.get(tracePath));
+
+        long executed = remainder;
+        long start = System.nanoTime();
+        try (AudioSink audio = audioPath == null ? new NullAudioSink() : new WavAudioSink(Paths.get(audioPath))) {
+            headless.setAudio(audio);
+            for (int frame = 0; frame < frames; frame++) {
+                int frameCycles = headless.frame(frame);
+                executed += frameCycles;
+
+                if (movie != null)
+                    movie.record(keypad.state(), frameCycles, headless.chip8.frameHash());
+
+                if (hashEvery > 0 && (frame + 1) % hashEvery == 0)
+                    System.out.printf("frame %d %016X%n", frame + 1, headless.chip8.frameHash());
+            }
+            headless.run((int) remainder);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (movie != null)
+            movie.write(Paths.get(recordPath));
+        if (profiler != null)
+            headless.writeProfile(profiler, Paths.get(profilePath));
+        if (tracer != null)
+            headless.closeTrace(tracer);
+
+        headless.printState(System.out);
+        printThroughput(System.out, executed, elapsed);
+    }
+
+    /**
+     * Run a ROM in real time for clients of a frame server on the loopback address, runs until the process is stopped
+     *
+     * @param rom to run
+     * @param port to listen on, 0 for any free port
+     * @param frequency cycles per second
+     * @throws IOException if the port can not be bound
+     */
+    public static void serve(byte[] rom, int port, int frequency) throws IOException {
+        try (FrameServer server = new FrameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            Chip8 chip8 = new Chip8(server.keypad());
+            chip8.loadRom(rom);
+
+            server.start();
+            System.out.printf("Serving frames on %s%n", server.getAddress());
+
+            FrameScheduler scheduler = new FrameScheduler();
+            long cycleRemainder = 0;
+            while (true) {
+                int frames = scheduler.awaitFrames();
+                for (int i = 0; i < frames; i++) {
+                    cycleRemainder += frequency;
+                    long cycles = cycleRemainder / FrameScheduler.FRAME_RATE;
+                    cycleRemainder %= FrameScheduler.FRAME_RATE;
+
+                    for (long cycle = 0; cycle < cycles; cycle++)
+                        chip8.cycle();
+                    chip8.tickTimers();
+                }
+
+                server.publish(chip8.getFrameBuffer(), chip8.takeDirtyRows());
+            }
+        }
+    }
+
+    /**
+     * Run copies of a ROM on a farm in real time and print how well it kept up
+     *
+     * @param rom to run
+     * @param sessions copies to run
+     * @param carriers threads running them
+     * @param frequency cycles per second of each copy
+     * @param frames length of the run in 60hz frames
+     */
+    public static void farm(byte[] rom, int sessions, int carriers, int frequency, long frames) {
+        try (Farm farm = new Farm(carriers)) {
+            for (int i = 0; i < sessions; i++)
+                farm.create(rom, frequency);
+
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(frames * 1000 / FrameScheduler.FRAME_RATE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long ran = 0, late = 0, cycles = 0, cpu = 0, busiest = 0;
+            for (Farm.Session session : farm.getSessions()) {
+                ran += session.getFrames();
+                late += session.getLateFrames();
+                cycles += session.getCycles();
+                cpu += session.getCpuNanos();
+                busiest = Math.max(busiest, session.getCpuNanos());
+            }
+
+            System.out.printf("Sessions %d  Carriers %d  Frames %d of %d  Late %d%n",
+                    sessions, carriers, ran, (long) sessions * frames, late);
+            System.out.printf("CPU per session %.3f ms avg, %.3f ms worst  Carrier load %.1f%%%n",
+                    cpu / 1e6 / sessions, busiest / 1e6, cpu * 100.0 / elapsed / carriers);
+            printThroughput(System.out, cycles, elapsed);
+        }
+    }
+
+    /**
+     * Replay every frame of a movie, stops at the first frame that does not match the recorded hash
+     *
+     * @param movie this was set up with
+     * @param hashEvery print the framebuffer hash every n frames, 0 for never
+     * @return true if every frame matched
+     */
+    public boolean play(Movie movie, int hashEvery) {
+        long executed = 0;
+        long start = System.nanoTime();
+        for (int frame = 0; frame < movie.getFrames(); frame++) {
+            frame(frame, movie.cycles(frame));
+            executed += movie.cycles(frame);
+
+            long hash = chip8.frameHash();
+            if (hashEvery > 0 && (frame + 1) % hashEvery == 0)
+                System.out.printf("frame %d %016X%n", frame + 1, hash);
+
+            if (hash != movie.hash(frame)) {
+                System.out.printf("Desync at frame %d, expected %016X got %016X%n", frame + 1, movie.hash(frame), hash);
+                printState(System.out);
+                return false;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        printState(System.out);
+        System.out.printf("Frames %d matched%n", movie.getFrames());
+        printThroughput(System.out, executed, elapsed);
+        return true;
+    }
+
+    /**
+     * Count the instructions run from now on
+     *
+     * @return profiler attached to the machine
+     */
+    public Profiler profile() {
+        Profiler profiler = new Profiler();
+        chip8.setProfiler(profiler);
+        return profiler;
+    }
+
+    private void writeProfile(Profiler profiler, Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            profiler.writeListing(out, chip8);
+        }
+    }
+
+    /**
+     * Record every instruction run from now on
+     *
+     * @param path of the trace
+     * @return tracer attached to the machine
+     * @throws IOException if the trace can not be created
+     */
+    public Tracer trace(Path path) throws IOException {
+        Tracer tracer = new Tracer(chip8, path);
+        chip8.setTracer(tracer);
+        return tracer;
+    }
+
+    private void closeTrace(Tracer tracer) throws IOException {
+        chip8.setTracer(null);
+        tracer.finish();
+        tracer.close();
+
+        if (tracer.getDropped() > 0)
+            System.out.printf("Trace dropped %d of %d instructions%n", tracer.getDropped(), tracer.getRecorded());
+    }
+
+    private static void printThroughput(PrintStream out, long executed, long elapsed) {
+        out.printf("Cycles %d  Time %.3f ms  Throughput %.2f Mcycles/s%n",
+                executed, elapsed / 1e6, executed * 1e3 / Math.max(1, elapsed));
+    }
+}
@@ -1,85 +1,99 @@
 package com.github.riku32.chippy8;
 
 import com.github.riku32.chippy8.VM.Keypad;
-import net.java.games.input.Keyboard;
+import com.github.riku32.chippy8.VM.KeypadEvent;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Keyboard keypad
+ *
+ * Keys are written by the AWT event thread and read by the emulation thread without locking, the held keys are a
+ * single atomic word and every change is also queued with its time for the machine to apply in order.
+ */
 public class Input implements Keypad {
-    private final boolean[] keys = new boolean[16];
+    // Events beyond this are dropped while the program is not checking keys, the state word stays correct
+    private static final int MAX_QUEUED = 64;
+
+    // Held keys, bit n is key n
+    private final AtomicInteger keys = new AtomicInteger();
+
+    private final Queue<KeypadEvent> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
 
     public Input() {
         KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(e -> {
-            synchronized (Keyboard.class) {
-                switch (e.getID()) {
-                    case KeyEvent.KEY_PRESSED:
-                        set(true, e.getKeyCode());
-                        break;
+            switch (e.getID()) {
+                case KeyEvent.KEY_PRESSED:
+                    set(true, e.getKeyCode());
+                    break;
 
-                    case KeyEvent.KEY_RELEASED:
-                        set(false, e.getKeyCode());
-                        break;
-                }
-                return false;
+                case KeyEvent.KEY_RELEASED:
+                    set(false, e.getKeyCode());
+                    break;
             }
+            return false;
         });
     }
 
     public boolean pressed(int value) {
-        return keys[value];
+        return (keys.get() >> value & 1) != 0;
+    }
+
+    public int state() {
+        return keys.get();
+    }
+
+    public KeypadEvent poll() {
+        KeypadEvent event = events.poll();
+        if (event != null)
+            queued.decrementAndGet();
+        return event;
+    }
+
+    private void set(boolean value, int keycode) {
+        int key = key(keycode);
+        if (key < 0)
+            return;
+
+        int bit = 1 << key;
+        int previous = keys.getAndUpdate(state -> value ? state | bit : state & ~bit);
+        int state = value ? previous | bit : previous & ~bit;
+
+        // Held keys repeat their press events, only changes are queued
+        if (state == previous)
+            return;
+
+        if (queued.incrementAndGet() <= MAX_QUEUED)
+            events.add(new KeypadEvent(key, value, state, System.nanoTime()));
+        else
+            queued.decrementAndGet();
     }
 
-    private void set(boolean value, int keycode){
-        switch(keycode) {
-            case KeyEvent.VK_1:
-                keys[0x1] = value;
-                break;
-            case KeyEvent.VK_2:
-                keys[0x2] = value;
-                break;
-            case KeyEvent.VK_3:
-                keys[0x3] = value;
-                break;
-            case KeyEvent.VK_4:
-                keys[0xC] = value;
-                break;
-            case KeyEvent.VK_Q:
-                keys[0x4] = value;
-                break;
-            case KeyEvent.VK_W:
-                keys[0x5] = value;
-                break;
-            case KeyEvent.VK_E:
-                keys[0x6] = value;
-                break;
-            case KeyEvent.VK_R:
-                keys[0xD] = value;
-                break;
-            case KeyEvent.VK_A:
-                keys[0x7] = value;
-                break;
-            case KeyEvent.VK_S:
-                keys[0x8] = value;
-                break;
-            case KeyEvent.VK_D:
-                keys[0x9] = value;
-                break;
-            case KeyEvent.VK_F:
-                keys[0xE] = value;
-                break;
-            case KeyEvent.VK_Z:
-                keys[0xA] = value;
-                break;
-            case KeyEvent.VK_X:
-                keys[0x0] = value;
-                break;
-            case KeyEvent.VK_C:
-                keys[0xB] = value;
-                break;
-            case KeyEvent.VK_V:
-                keys[0xF] = value;
-                break;
+    // Keypad key for a keyboard key, -1 if it is not mapped
+    private static int key(int keycode) {
+        switch (keycode) {
+            case KeyEvent.VK_1: return 0x1;
+            case KeyEvent.VK_2: return 0x2;
+            case KeyEvent.VK_3: return 0x3;
+            case KeyEvent.VK_4: return 0xC;
+            case KeyEvent.VK_Q: return 0x4;
+            case KeyEvent.VK_W: return 0x5;
+            case KeyEvent.VK_E: return 0x6;
+            case KeyEvent.VK_R: return 0xD;
+            case KeyEvent.VK_A: return 0x7;
+            case KeyEvent.VK_S: return 0x8;
+            case KeyEvent.VK_D: return 0x9;
+            case KeyEvent.VK_F: return 0xE;
+            case KeyEvent.VK_Z: return 0xA;
+            case KeyEvent.VK_X: return 0x0;
+            case KeyEvent.VK_C: return 0xB;
+            case KeyEvent.VK_V: return 0xF;
+            default: return -1;
         }
     }
 }
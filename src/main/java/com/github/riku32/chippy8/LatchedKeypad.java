@@ -0,0 +1,58 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Keypad;
+import com.github.riku32.chippy8.VM.KeypadEvent;
+
+/**
+ * Keypad that can hold its keys steady for a whole frame
+ *
+ * Unlatched it passes everything through. Latched, the keys are sampled once per frame and queued events are
+ * folded into that sample, so the input of a frame is a single key word that a movie can record and replay.
+ * Only used by the emulation thread.
+ */
+public class LatchedKeypad implements Keypad {
+    private final Keypad source;
+
+    private boolean latched;
+    private int keys;
+
+    public LatchedKeypad(Keypad source) {
+        this.source = source;
+    }
+
+    /**
+     * Start or stop holding keys per frame
+     *
+     * @param latched hold keys from the next {@link #latch()} on
+     */
+    public void setLatched(boolean latched) {
+        this.latched = latched;
+    }
+
+    /**
+     * Sample the keys for the next frame, a key pressed and released since the last sample counts as held
+     *
+     * @return keys held for the frame, bit n is key n
+     */
+    public int latch() {
+        int taps = 0;
+        KeypadEvent event;
+        while ((event = source.poll()) != null)
+            taps |= event.getState();
+
+        keys = source.state() | taps;
+        return keys;
+    }
+
+    public boolean pressed(int key) {
+        return latched ? (keys >> key & 1) != 0 : source.pressed(key);
+    }
+
+    public int state() {
+        return latched ? keys : source.state();
+    }
+
+    public KeypadEvent poll() {
+        return latched ? null : source.poll();
+    }
+}
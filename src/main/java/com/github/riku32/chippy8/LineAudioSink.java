@@ -0,0 +1,77 @@
+package com.github.riku32.chippy8;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the beeper on the default audio device
+ *
+ * A writer thread keeps the line fed with chunks of tone or silence, the emulation thread only flips a flag.
+ * The line buffer holds two chunks, so a change of the sound timer is heard within the configured buffer time.
+ */
+public class LineAudioSink implements AudioSink {
+    private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+    private final SourceDataLine line;
+    private final Thread writer;
+
+    // Chunk written per line write, in samples
+    private final int chunk;
+    private final byte[] tone;
+    private final byte[] silence;
+
+    private volatile boolean beeping;
+    private volatile boolean running = true;
+
+    /**
+     * Open the default audio device
+     *
+     * @param bufferMillis line buffer, the latency of the beeper
+     * @throws LineUnavailableException if no line can be opened
+     */
+    public LineAudioSink(int bufferMillis) throws LineUnavailableException {
+        this.chunk = Math.max(TONE_PERIOD, SAMPLE_RATE * bufferMillis / 2000);
+        this.tone = AudioSink.tone(chunk + TONE_PERIOD);
+        this.silence = new byte[chunk * 2];
+
+        line = AudioSystem.getSourceDataLine(FORMAT);
+        line.open(FORMAT, chunk * 4);
+        line.start();
+
+        writer = new Thread(this::write, "Chippy8 audio");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void frame(boolean beeping) {
+        this.beeping = beeping;
+    }
+
+    // Blocks in write() while the line is full, which paces the thread to the sample rate
+    private void write() {
+        int phase = 0;
+        while (running) {
+            if (beeping) {
+                line.write(tone, phase * 2, chunk * 2);
+                phase = (phase + chunk) % TONE_PERIOD;
+            } else {
+                line.write(silence, 0, silence.length);
+                phase = 0;
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        line.stop();
+        line.flush();
+        try {
+            writer.join(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.close();
+    }
+}
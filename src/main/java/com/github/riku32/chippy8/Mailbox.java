@@ -0,0 +1,82 @@
+package com.github.riku32.chippy8;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Commands for the emulation thread
+ *
+ * The machine is only ever touched by the emulation thread. Other threads post commands here and the emulation
+ * thread runs them between frames, so nothing has to be locked and a command never sees a half executed frame.
+ * Posting never blocks, results and failures are delivered through the returned future on the emulation thread.
+ */
+public class Mailbox {
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Post a command without a result
+     *
+     * @param command to run on the emulation thread
+     * @return completes once the command has run
+     */
+    public CompletableFuture<Void> run(Runnable command) {
+        return call(() -> {
+            command.run();
+            return null;
+        });
+    }
+
+    /**
+     * Post a command with a result
+     *
+     * @param command to run on the emulation thread
+     * @param <T> result type
+     * @return result of the command, or what it threw
+     */
+    public <T> CompletableFuture<T> call(Callable<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        commands.add(() -> {
+            try {
+                result.complete(command.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Post a command without a future, for commands posted over and over that must not allocate
+     *
+     * @param command to run on the emulation thread, must not throw
+     */
+    public void post(Runnable command) {
+        commands.add(command);
+    }
+
+    /**
+     * Check for pending commands, from any thread
+     *
+     * @return true if nothing is waiting to run
+     */
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    /**
+     * Run every pending command, only called by the emulation thread
+     *
+     * @return commands run
+     */
+    public int drain() {
+        int count = 0;
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+            count++;
+        }
+        return count;
+    }
+}
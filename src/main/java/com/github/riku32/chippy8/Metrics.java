@@ -0,0 +1,199 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a running emulator, exposed over JMX and optionally as plain text over HTTP
+ *
+ * Only exists when {@link #ENABLED}, every call site checks the flag first so a disabled build runs no metrics code.
+ * Counters are LongAdders since they are bumped from the emulation thread, the EDT and the I/O thread.
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * Set with -Dchippy8.metrics=true, also enables opcode counting in the machine
+     */
+    public static final boolean ENABLED = Chip8.METRICS;
+
+    private static final String[] FAMILIES = {
+            "0NNN SYS", "1NNN JP", "2NNN CALL", "3XKK SE", "4XKK SNE", "5XY0 SE", "6XKK LD", "7XKK ADD",
+            "8XYN ALU", "9XY0 SNE", "ANNN LD I", "BNNN JP V0", "CXKK RND", "DXYN DRW", "EXNN SKP", "FXNN LD"
+    };
+
+    // Upper bounds of the frame time buckets, the last bucket has none
+    private static final long[] FRAME_BUCKETS = {250_000, 500_000, 1_000_000, 2_000_000, 4_000_000, 8_000_000, 16_000_000};
+
+    private final Chip8 chip8;
+
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder repaints = new LongAdder();
+    private final LongAdder stateSaves = new LongAdder();
+    private final LongAdder stateSaveNanos = new LongAdder();
+    private final LongAdder[] frameTimes = new LongAdder[FRAME_BUCKETS.length + 1];
+
+    // Rate over the last sample period, only written by the emulation thread
+    private volatile double instructionsPerSecond;
+    private long sampledInstructions;
+    private long sampledAt = System.nanoTime();
+
+    public Metrics(Chip8 chip8) {
+        this.chip8 = chip8;
+        for (int i = 0; i < frameTimes.length; i++)
+            frameTimes[i] = new LongAdder();
+    }
+
+    /**
+     * Count an emulated frame
+     *
+     * @param cycles run in the frame
+     */
+    public void frame(long cycles) {
+        instructions.add(cycles);
+        frames.increment();
+    }
+
+    /**
+     * Record the time spent emulating and publishing one frame
+     *
+     * @param nanos spent
+     */
+    public void frameTime(long nanos) {
+        int bucket = 0;
+        while (bucket < FRAME_BUCKETS.length && nanos > FRAME_BUCKETS[bucket])
+            bucket++;
+        frameTimes[bucket].increment();
+    }
+
+    public void repaint() {
+        repaints.increment();
+    }
+
+    /**
+     * Record a state save, from the request until it was stored
+     *
+     * @param nanos taken
+     */
+    public void stateSaved(long nanos) {
+        stateSaves.increment();
+        stateSaveNanos.add(nanos);
+    }
+
+    /**
+     * Update the instruction rate, called by the emulation thread about once a second
+     */
+    public void sample() {
+        long now = System.nanoTime();
+        long total = instructions.sum();
+        instructionsPerSecond = (total - sampledInstructions) * 1e9 / Math.max(1, now - sampledAt);
+        sampledInstructions = total;
+        sampledAt = now;
+    }
+
+    public long getInstructions() {
+        return instructions.sum();
+    }
+
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getRepaints() {
+        return repaints.sum();
+    }
+
+    public long getStateSaves() {
+        return stateSaves.sum();
+    }
+
+    public double getAverageStateSaveMillis() {
+        long saves = stateSaves.sum();
+        return saves == 0 ? 0 : stateSaveNanos.sum() / 1e6 / saves;
+    }
+
+    public Map<String, Long> getFrameTimeHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < frameTimes.length; i++) {
+            String bound = i < FRAME_BUCKETS.length ? String.format(Locale.ROOT, "<=%.2fms", FRAME_BUCKETS[i] / 1e6) : "more";
+            histogram.put(bound, frameTimes[i].sum());
+        }
+        return histogram;
+    }
+
+    public Map<String, Long> getOpcodeMix() {
+        long[] counts = chip8.opcodeCounts();
+        Map<String, Long> mix = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++)
+            mix.put(FAMILIES[i], counts[i]);
+        return mix;
+    }
+
+    /**
+     * Every metric as text, one "name value" pair per line
+     *
+     * @return text
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append("instructions ").append(getInstructions()).append('\n');
+        text.append(String.format(Locale.ROOT, "instructions_per_second %.0f", getInstructionsPerSecond())).append('\n');
+        text.append("frames ").append(getFrames()).append('\n');
+        text.append("repaints ").append(getRepaints()).append('\n');
+        text.append("state_saves ").append(getStateSaves()).append('\n');
+        text.append(String.format(Locale.ROOT, "state_save_ms %.3f", getAverageStateSaveMillis())).append('\n');
+        for (Map.Entry<String, Long> bucket : getFrameTimeHistogram().entrySet())
+            text.append("frame_time{le=\"").append(bucket.getKey()).append("\"} ").append(bucket.getValue()).append('\n');
+        for (Map.Entry<String, Long> family : getOpcodeMix().entrySet())
+            text.append("opcodes{family=\"").append(family.getKey()).append("\"} ").append(family.getValue()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Register with the platform MBean server
+     *
+     * @throws JMException if the bean can not be registered
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("com.github.riku32.chippy8:type=Metrics"));
+    }
+
+    /**
+     * Serve {@link #toText()} at /metrics on the loopback interface
+     *
+     * @param port to listen on
+     * @return running server
+     * @throws IOException if the port can not be bound
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.riku32.chippy8;
+
+import java.util.Map;
+
+/**
+ * Management view of {@link Metrics}, registered as com.github.riku32.chippy8:type=Metrics
+ */
+public interface MetricsMXBean {
+    long getInstructions();
+
+    // Measured over the last second
+    double getInstructionsPerSecond();
+
+    long getFrames();
+
+    long getRepaints();
+
+    long getStateSaves();
+
+    double getAverageStateSaveMillis();
+
+    // Frames by time spent emulating and publishing them, keyed by upper bound
+    Map<String, Long> getFrameTimeHistogram();
+
+    // Instructions by opcode family
+    Map<String, Long> getOpcodeMix();
+}
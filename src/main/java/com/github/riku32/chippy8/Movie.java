@@ -0,0 +1,158 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Recorded input of a run, enough to replay it exactly
+ *
+ * A movie starts from a full machine state, which includes the RNG state, and lists the held keys and cycles run
+ * for every frame together with the framebuffer hash at the end of it. Replaying the keys and cycles from the start
+ * state has to reproduce every hash, the first frame that does not is where the replay desynced.
+ *
+ * File layout, gzip compressed and big endian
+ * <pre>
+ * 0    magic "C8MV"       4    version          6    reserved
+ * 8    frames             12   start state ({@link Chip8#STATE_SIZE} bytes)
+ * then per frame   keys (16-bit)   cycles (32-bit)   framebuffer hash (64-bit)
+ * </pre>
+ */
+public class Movie {
+    private static final int MAGIC = 0x43384D56;
+    private static final short VERSION = 1;
+
+    // State of the machine before the first frame
+    @Getter
+    private final byte[] start;
+
+    @Getter
+    private int frames;
+
+    private int[] keys = new int[1024];
+    private int[] cycles = new int[1024];
+    private long[] hashes = new long[1024];
+
+    /**
+     * Empty movie to record into
+     *
+     * @param start state of the machine before the first frame
+     */
+    public Movie(byte[] start) {
+        if (start.length != Chip8.STATE_SIZE)
+            throw new IllegalArgumentException("Not a full state");
+        this.start = start;
+    }
+
+    /**
+     * Append a frame
+     *
+     * @param keys held during the frame, bit n is key n
+     * @param cycles run in the frame
+     * @param hash of the framebuffer at the end of the frame
+     */
+    public void record(int keys, int cycles, long hash) {
+        if (frames == hashes.length) {
+            this.keys = Arrays.copyOf(this.keys, frames * 2);
+            this.cycles = Arrays.copyOf(this.cycles, frames * 2);
+            this.hashes = Arrays.copyOf(hashes, frames * 2);
+        }
+
+        this.keys[frames] = keys & 0xFFFF;
+        this.cycles[frames] = cycles;
+        this.hashes[frames] = hash;
+        frames++;
+    }
+
+    public int keys(int frame) {
+        return keys[frame];
+    }
+
+    public int cycles(int frame) {
+        return cycles[frame];
+    }
+
+    public long hash(int frame) {
+        return hashes[frame];
+    }
+
+    /**
+     * Keypad playing back the recorded keys
+     *
+     * @return keypad advanced with {@link ScriptedKeypad#setFrame(int)}
+     */
+    public ScriptedKeypad keypad() {
+        int[] frameNumbers = new int[frames];
+        for (int i = 0; i < frames; i++)
+            frameNumbers[i] = i;
+        return new ScriptedKeypad(frameNumbers, Arrays.copyOf(keys, frames));
+    }
+
+    /**
+     * Write the movie to a file
+     *
+     * @param path of the movie, replaced if it exists
+     * @throws IOException if writing fails
+     */
+    public void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(path))))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(frames);
+            out.write(start);
+
+            for (int i = 0; i < frames; i++) {
+                out.writeShort(keys[i]);
+                out.writeInt(cycles[i]);
+                out.writeLong(hashes[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a movie
+     *
+     * @param path of the movie
+     * @return movie
+     * @throws IOException if the file can not be read or is not a movie
+     */
+    public static Movie load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a Chippy8 movie");
+
+            short version = in.readShort();
+            if (version != VERSION)
+                throw new IOException(String.format("Unsupported movie version %d", version));
+            in.readShort();
+
+            int frames = in.readInt();
+            if (frames < 0)
+                throw new IOException("Invalid frame count");
+
+            byte[] start = new byte[Chip8.STATE_SIZE];
+            in.readFully(start);
+
+            Movie movie = new Movie(start);
+            for (int i = 0; i < frames; i++)
+                movie.record(in.readUnsignedShort(), in.readInt(), in.readLong());
+            return movie;
+        } catch (EOFException e) {
+            throw new IOException("Movie is truncated", e);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.github.riku32.chippy8;
+
+/**
+ * Discards the beeper, used when there is no audio device or no one listening
+ */
+public class NullAudioSink implements AudioSink {
+    public void frame(boolean beeping) {
+    }
+}
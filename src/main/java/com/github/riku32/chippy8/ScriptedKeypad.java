@@ -0,0 +1,107 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Keypad;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keypad driven by a frame indexed script instead of a keyboard
+ *
+ * Each line of a script is a frame number followed by the keys held from that frame on,
+ * keys are hex digits and "-" releases everything. Blank lines and lines starting with # are ignored
+ * <pre>
+ * # frame keys
+ * 0   -
+ * 120 5
+ * 150 46
+ * 180 -
+ * </pre>
+ */
+public class ScriptedKeypad implements Keypad {
+    private final int[] frames;
+    private final int[] states;
+
+    // Index of the script entry in effect
+    private int entry = -1;
+    private int state;
+
+    public ScriptedKeypad(int[] frames, int[] states) {
+        this.frames = frames;
+        this.states = states;
+    }
+
+    /**
+     * Keypad with no keys ever pressed
+     */
+    public ScriptedKeypad() {
+        this(new int[0], new int[0]);
+    }
+
+    /**
+     * Parse a key script
+     *
+     * @param path of the script
+     * @return keypad
+     */
+    public static ScriptedKeypad load(Path path) throws IOException {
+        List<int[]> entries = new ArrayList<>();
+
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(path)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 2)
+                throw new IOException(String.format("Invalid key script line %d: %s", lineNumber, line));
+
+            int state = 0;
+            try {
+                int frame = Integer.parseInt(parts[0]);
+                if (!parts[1].equals("-"))
+                    for (char key : parts[1].toCharArray())
+                        state |= 1 << Integer.parseInt(String.valueOf(key), 16);
+
+                if (!entries.isEmpty() && entries.get(entries.size() - 1)[0] > frame)
+                    throw new IOException(String.format("Key script frames out of order at line %d", lineNumber));
+
+                entries.add(new int[] { frame, state });
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Invalid key script line %d: %s", lineNumber, line));
+            }
+        }
+
+        int[] frames = new int[entries.size()];
+        int[] states = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            frames[i] = entries.get(i)[0];
+            states[i] = entries.get(i)[1];
+        }
+
+        return new ScriptedKeypad(frames, states);
+    }
+
+    /**
+     * Advance the script, frames must not go backwards
+     *
+     * @param frame current frame
+     */
+    public void setFrame(int frame) {
+        while (entry + 1 < frames.length && frames[entry + 1] <= frame)
+            state = states[++entry];
+    }
+
+    public boolean pressed(int key) {
+        return (state >> key & 1) != 0;
+    }
+
+    public int state() {
+        return state;
+    }
+}
@@ -0,0 +1,397 @@
+package com.github.riku32.chippy8;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import com.github.riku32.chippy8.VM.Memory;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Content addressed store of save states for a single ROM
+ *
+ * A state is split into pages, one holding the registers and framebuffer and 16 holding 256 bytes of memory each.
+ * Pages are stored once in a memory mapped page file no matter how many states use them, so the ROM and other
+ * unchanged memory is shared between every state. An append-only index lists the pages of each state, a state is
+ * only visible once its index record is written and forced after its pages, so a crash never leaves a partial state.
+ *
+ * All file access happens on the store's own thread, every operation returns a future.
+ */
+public class StateStore implements Closeable {
+    private static final int INDEX_MAGIC = 0x43385349; // "C8SI"
+    private static final short INDEX_VERSION = 1;
+    private static final int INDEX_HEADER = 8;
+
+    private static final int MEMORY_OFFSET = Chip8.STATE_SIZE - Memory.SIZE;
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGES = 1 + Memory.SIZE / PAGE_SIZE;
+
+    // Initial size of the page file mapping, doubled as needed
+    private static final int INITIAL_MAPPING = 1024 * 1024;
+
+    /**
+     * A stored state, the label is free text chosen when saving
+     */
+    public static final class Entry {
+        @Getter
+        private final String label;
+
+        // Milliseconds since the epoch
+        @Getter
+        private final long timestamp;
+
+        // Content hash of the whole state
+        @Getter
+        private final long hash;
+
+        // Offset of each page in the page file
+        @Getter
+        private final long[] pages;
+
+        private Entry(String label, long timestamp, long hash, long[] pages) {
+            this.label = label;
+            this.timestamp = timestamp;
+            this.hash = hash;
+            this.pages = pages;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Chippy8 state store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+
+    private FileChannel pageChannel;
+    private MappedByteBuffer pageMap;
+    private long pageEnd;
+
+    private FileChannel indexChannel;
+    private long indexEnd;
+
+    // Only touched on the store thread
+    private final Map<Long, Long> pagesByHash = new HashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    // Published copy of the index for listing from any thread
+    private volatile List<Entry> snapshot = Collections.emptyList();
+
+    private final CompletableFuture<Void> opened;
+
+    /**
+     * Open or create a store, the index is read in the background
+     *
+     * @param directory holding the store files
+     */
+    public StateStore(Path directory) {
+        this.directory = directory;
+        this.opened = CompletableFuture.runAsync(() -> {
+            try {
+                open();
+            } catch (IOException e) {
+                throw new StoreException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Completes once the index has been read
+     *
+     * @return future
+     */
+    public CompletableFuture<Void> opened() {
+        return opened;
+    }
+
+    /**
+     * Every stored state, oldest first
+     * Empty until the store has been opened
+     *
+     * @return states
+     */
+    public List<Entry> list() {
+        return snapshot;
+    }
+
+    /**
+     * Newest state saved under a label
+     *
+     * @param label to look for
+     * @return newest state or null
+     */
+    public Entry latest(String label) {
+        List<Entry> list = snapshot;
+        for (int i = list.size() - 1; i >= 0; i--)
+            if (list.get(i).label.equals(label))
+                return list.get(i);
+        return null;
+    }
+
+    /**
+     * Newest state saved under any label
+     *
+     * @return newest state or null
+     */
+    public Entry latest() {
+        List<Entry> list = snapshot;
+        return list.isEmpty() ? null : list.get(list.size() - 1);
+    }
+
+    /**
+     * Store a state, saving a state identical to an existing one under the same label writes nothing
+     *
+     * @param label of the state
+     * @param state as written by {@link Chip8#saveState()}, not modified until the future completes
+     * @return stored entry
+     */
+    public CompletableFuture<Entry> save(String label, byte[] state) {
+        if (state.length != Chip8.STATE_SIZE)
+            throw new IllegalArgumentException("Not a full state");
+
+        return opened.thenApplyAsync(ignored -> {
+            try {
+                return write(label, state);
+            } catch (IOException e) {
+                throw new StoreException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Read a stored state
+     *
+     * @param entry to read
+     * @return state for {@link Chip8#loadState(byte[])}
+     */
+    public CompletableFuture<byte[]> load(Entry entry) {
+        return opened.thenApplyAsync(ignored -> read(entry), executor);
+    }
+
+    public void close() throws IOException {
+        executor.submit(() -> {
+            try {
+                if (pageChannel != null)
+                    pageChannel.close();
+                if (indexChannel != null)
+                    indexChannel.close();
+            } catch (IOException ignored) {
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+
+        pageChannel = FileChannel.open(directory.resolve("pages.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(directory.resolve("index.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        pageMap = pageChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(INITIAL_MAPPING, pageChannel.size()));
+
+        if (indexChannel.size() < INDEX_HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+            header.putInt(INDEX_MAGIC).putShort(INDEX_VERSION).putShort((short) 0).flip();
+            indexChannel.write(header, 0);
+            indexChannel.force(false);
+            indexEnd = INDEX_HEADER;
+        } else {
+            readIndex();
+        }
+
+        // Rebuild the page lookup from every live page
+        byte[] state = new byte[Chip8.STATE_SIZE];
+        for (Entry entry : entries) {
+            for (int page = 0; page < PAGES; page++) {
+                long offset = entry.pages[page];
+                readPage(offset, state, 0, pageLength(page));
+                pagesByHash.putIfAbsent(hash(state, 0, pageLength(page)), offset);
+            }
+        }
+
+        snapshot = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer index = ByteBuffer.allocate((int) indexChannel.size());
+        indexChannel.read(index, 0);
+        index.flip();
+
+        if (index.getInt() != INDEX_MAGIC || index.getShort() != INDEX_VERSION)
+            throw new IOException("Not a state store index: " + directory);
+        index.getShort();
+
+        // Records are only trusted up to the first torn or corrupt one, which is cut off
+        CRC32 crc = new CRC32();
+        indexEnd = index.position();
+        while (index.remaining() >= 4) {
+            int start = index.position();
+            int length = index.getInt();
+            if (length < 4 || length > index.remaining())
+                break;
+
+            crc.reset();
+            crc.update(index.array(), start + 4, length - 4);
+            if ((int) crc.getValue() != index.getInt(start + length))
+                break;
+
+            long timestamp = index.getLong();
+            long hash = index.getLong();
+            byte[] label = new byte[index.getShort()];
+            index.get(label);
+            long[] pages = new long[PAGES];
+            for (int page = 0; page < PAGES; page++) {
+                pages[page] = index.getLong();
+                pageEnd = Math.max(pageEnd, pages[page] + pageLength(page));
+            }
+            index.position(start + 4 + length);
+            indexEnd = index.position();
+
+            entries.add(new Entry(new String(label, StandardCharsets.UTF_8), timestamp, hash, pages));
+        }
+
+        if (indexEnd < indexChannel.size())
+            indexChannel.truncate(indexEnd);
+    }
+
+    private Entry write(String label, byte[] state) throws IOException {
+        long hash = hash(state, 0, state.length);
+
+        long[] pages = new long[PAGES];
+        for (int page = 0; page < PAGES; page++) {
+            int start = pageStart(page);
+            int length = pageLength(page);
+
+            Long offset = pagesByHash.get(hash(state, start, length));
+            if (offset != null && samePage(offset, state, start, length)) {
+                pages[page] = offset;
+            } else {
+                ensureCapacity(pageEnd + length);
+                ByteBuffer view = pageMap.duplicate();
+                view.position((int) pageEnd);
+                view.put(state, start, length);
+
+                pages[page] = pageEnd;
+                pagesByHash.put(hash(state, start, length), pageEnd);
+                pageEnd += length;
+            }
+        }
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            if (entry.hash == hash && entry.label.equals(label) && Arrays.equals(entry.pages, pages))
+                return entry;
+        }
+
+        // Pages have to be durable before the index record that refers to them
+        pageMap.force();
+
+        byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 8 + 8 + 2 + labelBytes.length + PAGES * 8 + 4;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length - 4);
+        long timestamp = System.currentTimeMillis();
+        record.putLong(timestamp);
+        record.putLong(hash);
+        record.putShort((short) labelBytes.length);
+        record.put(labelBytes);
+        for (long page : pages)
+            record.putLong(page);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 8);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        while (record.hasRemaining())
+            indexEnd += indexChannel.write(record, indexEnd);
+        indexChannel.force(false);
+
+        Entry entry = new Entry(label, timestamp, hash, pages);
+        entries.add(entry);
+        snapshot = Collections.unmodifiableList(new ArrayList<>(entries));
+
+        return entry;
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] state = new byte[Chip8.STATE_SIZE];
+        for (int page = 0; page < PAGES; page++)
+            readPage(entry.pages[page], state, pageStart(page), pageLength(page));
+        return state;
+    }
+
+    private void readPage(long offset, byte[] state, int start, int length) {
+        ByteBuffer view = pageMap.duplicate();
+        view.position((int) offset);
+        view.get(state, start, length);
+    }
+
+    private boolean samePage(long offset, byte[] state, int start, int length) {
+        for (int i = 0; i < length; i++)
+            if (pageMap.get((int) offset + i) != state[start + i])
+                return false;
+        return true;
+    }
+
+    private void ensureCapacity(long size) throws IOException {
+        if (size <= pageMap.capacity())
+            return;
+
+        long capacity = pageMap.capacity();
+        while (capacity < size)
+            capacity *= 2;
+        if (capacity > Integer.MAX_VALUE)
+            throw new IOException("State store is full");
+
+        pageMap = pageChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static int pageStart(int page) {
+        return page == 0 ? 0 : MEMORY_OFFSET + (page - 1) * PAGE_SIZE;
+    }
+
+    private static int pageLength(int page) {
+        return page == 0 ? MEMORY_OFFSET : PAGE_SIZE;
+    }
+
+    // 64-bit FNV-1a, verified against the stored bytes before a page is shared
+    private static long hash(byte[] data, int start, int length) {
+        long hash = 0xCBF29CE484222325L ^ length;
+        for (int i = start; i < start + length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * I/O failure inside a store operation, the cause of the failed future
+     */
+    public static class StoreException extends RuntimeException {
+        StoreException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.riku32.chippy8.VM;
+
+/**
+ * Compiled code entered at one address, generated at runtime by the {@link Recompiler}
+ */
+interface Block {
+    /**
+     * Execute instructions until leaving the compiled code or until the next basic block does not fit the budget
+     *
+     * @param chip8 machine to run against
+     * @param budget most instructions to run
+     * @return instructions run, 0 if the first basic block did not fit
+     */
+    int run(Chip8 chip8, int budget);
+}
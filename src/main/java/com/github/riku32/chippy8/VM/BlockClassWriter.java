@@ -0,0 +1,339 @@
+package com.github.riku32.chippy8.VM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer for compiled blocks
+ * Emits a final class implementing {@link Block} whose run method calls the handlers with constant opcodes,
+ * so HotSpot can inline and constant fold them. Basic blocks are labelled by their CHIP-8 address and branch to
+ * each other inside the method, which is entered at the block the machine PC points to. The class file version
+ * predates stack map frames, so branches need none.
+ */
+final class BlockClassWriter {
+    private static final int CLASS_VERSION = 49;
+
+    private static final String CHIP8 = "com/github/riku32/chippy8/VM/Chip8";
+    private static final String BLOCK = "com/github/riku32/chippy8/VM/Block";
+
+    // Label of the shared exit, returns the instructions run so far
+    static final int EXIT = -1;
+
+    // Constant pool tags
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int CLASS = 7;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    // Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD_2 = 0x1C;
+    private static final int ILOAD_3 = 0x1D;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ISTORE_3 = 0x3E;
+    private static final int IADD = 0x60;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPEQ = 0x9F;
+    private static final int IF_ICMPLE = 0xA4;
+    private static final int GOTO = 0xA7;
+    private static final int LOOKUPSWITCH = 0xAB;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    // Locals of the run method: this, machine, budget, instructions run
+    private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream code = new DataOutputStream(codeBytes);
+
+    // Code position of each label and the branches still to be pointed at them
+    // As instruction position, offset position, offset size and label
+    private final Map<Integer, Integer> labels = new HashMap<>();
+    private final List<int[]> branches = new ArrayList<>();
+
+    private final String name;
+
+    /**
+     * @param name internal name of the class to generate
+     */
+    BlockClassWriter(String name) throws IOException {
+        this.name = name;
+
+        code.writeByte(ICONST_0);
+        code.writeByte(ISTORE_3);
+    }
+
+    /**
+     * Enter the method at the basic block the machine PC points to, or leave if none starts there
+     *
+     * @param starts addresses of every basic block, ascending
+     */
+    void enter(int[] starts) throws IOException {
+        code.writeByte(ALOAD_1);
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(methodRef(CHIP8, "getPc", "()S"));
+
+        int position = codeBytes.size();
+        code.writeByte(LOOKUPSWITCH);
+        while (codeBytes.size() % 4 != 0)
+            code.writeByte(0);
+        branches.add(new int[]{position, codeBytes.size(), 4, EXIT});
+        code.writeInt(0);
+        code.writeInt(starts.length);
+        for (int start : starts) {
+            code.writeInt(start);
+            branches.add(new int[]{position, codeBytes.size(), 4, start});
+            code.writeInt(0);
+        }
+    }
+
+    /**
+     * Start the basic block at an address, branches to it land here
+     *
+     * @param address of the first instruction
+     */
+    void label(int address) {
+        labels.put(address, codeBytes.size());
+    }
+
+    /**
+     * Exit unless the next instructions fit in the budget, then count them as run
+     *
+     * @param instructions in the basic block, at most 127
+     */
+    void budget(int instructions) throws IOException {
+        // if (run + instructions > budget) return run;
+        code.writeByte(ILOAD_3);
+        push(instructions);
+        code.writeByte(IADD);
+        code.writeByte(ILOAD_2);
+        code.writeByte(IF_ICMPLE);
+        code.writeShort(3 + 2);
+        code.writeByte(ILOAD_3);
+        code.writeByte(IRETURN);
+
+        code.writeByte(IINC);
+        code.writeByte(3);
+        code.writeByte(instructions);
+    }
+
+    /**
+     * Append a call to a handler taking the raw opcode
+     *
+     * @param handler name of the Chip8 handler method
+     * @param op raw 16-bit opcode
+     */
+    void call(String handler, int op) throws IOException {
+        code.writeByte(ALOAD_1);
+        push(op);
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(methodRef(CHIP8, handler, "(I)V"));
+    }
+
+    /**
+     * Append a call to a handler without operands
+     *
+     * @param handler name of the Chip8 handler method
+     */
+    void call(String handler) throws IOException {
+        code.writeByte(ALOAD_1);
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(methodRef(CHIP8, handler, "()V"));
+    }
+
+    /**
+     * Continue at a label
+     *
+     * @param label address of a basic block or {@link #EXIT}
+     */
+    void jump(int label) throws IOException {
+        branch(GOTO, label);
+    }
+
+    /**
+     * Continue at one of two addresses depending on the machine PC, used after skips and key waits
+     *
+     * @param address compared with the PC
+     * @param label taken when the PC points to the address
+     * @param otherwise label taken otherwise
+     */
+    void branch(int address, int label, int otherwise) throws IOException {
+        code.writeByte(ALOAD_1);
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(methodRef(CHIP8, "getPc", "()S"));
+        push(address);
+        branch(IF_ICMPEQ, label);
+        branch(GOTO, otherwise);
+    }
+
+    /**
+     * Finish the class
+     *
+     * @return class file bytes
+     */
+    byte[] toByteArray() throws IOException {
+        label(EXIT);
+        code.writeByte(ILOAD_3);
+        code.writeByte(IRETURN);
+
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int blockInterface = classRef(BLOCK);
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initDesc = utf8("()V");
+        int runName = utf8("run");
+        int runDesc = utf8("(L" + CHIP8 + ";I)I");
+        int codeAttribute = utf8("Code");
+        pool.flush();
+        code.flush();
+
+        // Point every branch at its label, offsets are relative to the branch instruction
+        byte[] body = codeBytes.toByteArray();
+        for (int[] branch : branches) {
+            int offset = labels.get(branch[3]) - branch[0];
+            for (int i = 0; i < branch[2]; i++)
+                body[branch[1] + i] = (byte) (offset >> (branch[2] - 1 - i) * 8);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        out.writeShort(poolCount);
+        poolBytes.writeTo(out);
+
+        out.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0); // Fields
+
+        out.writeShort(2); // Methods
+
+        // Constructor, only calls super
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initDesc);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + 5);
+        out.writeShort(1); // Max stack
+        out.writeShort(1); // Max locals
+        out.writeInt(5);
+        out.writeByte(ALOAD_0);
+        out.writeByte(INVOKESPECIAL);
+        out.writeShort(objectInit);
+        out.writeByte(RETURN);
+        out.writeShort(0); // Exception table
+        out.writeShort(0); // Attributes
+
+        // Block body
+        out.writeShort(0x0001);
+        out.writeShort(runName);
+        out.writeShort(runDesc);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + body.length);
+        out.writeShort(2); // Max stack
+        out.writeShort(4); // Max locals
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // Exception table
+        out.writeShort(0); // Attributes
+
+        out.writeShort(0); // Class attributes
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private void branch(int opcode, int label) throws IOException {
+        branches.add(new int[]{codeBytes.size(), codeBytes.size() + 1, 2, label});
+        code.writeByte(opcode);
+        code.writeShort(0);
+    }
+
+    private void push(int value) throws IOException {
+        if (value <= Short.MAX_VALUE) {
+            code.writeByte(SIPUSH);
+            code.writeShort(value);
+        } else {
+            code.writeByte(LDC_W);
+            code.writeShort(integer(value));
+        }
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolIndex.get("U" + value);
+        if (index != null)
+            return index;
+
+        pool.writeByte(UTF8);
+        pool.writeUTF(value);
+        return add("U" + value);
+    }
+
+    private int integer(int value) throws IOException {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null)
+            return index;
+
+        pool.writeByte(INTEGER);
+        pool.writeInt(value);
+        return add("I" + value);
+    }
+
+    private int classRef(String internalName) throws IOException {
+        Integer index = poolIndex.get("C" + internalName);
+        if (index != null)
+            return index;
+
+        int nameIndex = utf8(internalName);
+        pool.writeByte(CLASS);
+        pool.writeShort(nameIndex);
+        return add("C" + internalName);
+    }
+
+    private int methodRef(String owner, String method, String descriptor) throws IOException {
+        String key = "M" + owner + "." + method + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(method);
+        int descriptorIndex = utf8(descriptor);
+        pool.writeByte(NAME_AND_TYPE);
+        pool.writeShort(nameIndex);
+        pool.writeShort(descriptorIndex);
+        int nameAndType = add("N" + key);
+
+        pool.writeByte(METHOD_REF);
+        pool.writeShort(ownerIndex);
+        pool.writeShort(nameAndType);
+        return add(key);
+    }
+
+    private int add(String key) {
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+/**
+ * Stops the machine before the instruction at an address runs, optionally only while a register matches a value
+ */
+public final class Breakpoint {
+    // Register number for I in conditions, 0-F are V0-VF
+    public static final int INDEX = 16;
+
+    public enum Comparison {
+        EQUAL("=="),
+        NOT_EQUAL("!="),
+        LESS("<"),
+        LESS_OR_EQUAL("<="),
+        GREATER(">"),
+        GREATER_OR_EQUAL(">=");
+
+        @Getter
+        private final String symbol;
+
+        Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        boolean test(int a, int b) {
+            switch (this) {
+                case EQUAL:
+                    return a == b;
+                case NOT_EQUAL:
+                    return a != b;
+                case LESS:
+                    return a < b;
+                case LESS_OR_EQUAL:
+                    return a <= b;
+                case GREATER:
+                    return a > b;
+                default:
+                    return a >= b;
+            }
+        }
+
+        /**
+         * Comparison written as a symbol
+         *
+         * @param symbol such as "==" or "<="
+         * @return comparison
+         * @throws IllegalArgumentException if no comparison uses the symbol
+         */
+        public static Comparison of(String symbol) {
+            for (Comparison comparison : values())
+                if (comparison.symbol.equals(symbol))
+                    return comparison;
+            throw new IllegalArgumentException("Unknown comparison " + symbol);
+        }
+    }
+
+    @Getter
+    private final int address;
+
+    // Register the condition reads, -1 for an unconditional breakpoint
+    @Getter
+    private final int register;
+
+    @Getter
+    private final Comparison comparison;
+
+    @Getter
+    private final int value;
+
+    /**
+     * Break every time the address is reached
+     *
+     * @param address of the instruction
+     */
+    public Breakpoint(int address) {
+        this(address, -1, Comparison.EQUAL, 0);
+    }
+
+    /**
+     * Break when the address is reached and a register compares true against a value
+     *
+     * @param address of the instruction
+     * @param register 0-F for V0-VF or {@link #INDEX} for I
+     * @param comparison of the register with the value, the register on the left
+     * @param value compared against, unsigned
+     */
+    public Breakpoint(int address, int register, Comparison comparison, int value) {
+        if (address < 0 || address >= Memory.SIZE)
+            throw new IllegalArgumentException("Address outside of memory");
+        if (register < -1 || register > INDEX)
+            throw new IllegalArgumentException("Unknown register");
+
+        this.address = address;
+        this.register = register;
+        this.comparison = comparison;
+        this.value = value;
+    }
+
+    boolean test(Chip8 chip8) {
+        if (register < 0)
+            return true;
+
+        int current = register == INDEX ? chip8.getIndex() & 0xFFFF : chip8.getV()[register] & 0xFF;
+        return comparison.test(current, value);
+    }
+
+    public String toString() {
+        if (register < 0)
+            return String.format("%03X", address);
+        return String.format("%03X if %s %s %X", address,
+                register == INDEX ? "I" : String.format("V%X", register), comparison.symbol, value);
+    }
+}
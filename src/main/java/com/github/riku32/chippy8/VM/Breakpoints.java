@@ -0,0 +1,145 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Breakpoints and memory watchpoints checked before every instruction
+ *
+ * Armed with {@link Chip8#setBreakpoints(Breakpoints)}, the machine only takes the checking path while a set is
+ * armed, so an empty set should not be armed at all. Recompiled blocks are not entered while armed.
+ * When one triggers the instruction is not run and {@link #getHit()} describes why, the machine stays in front
+ * of it until {@link #resume()} lets it through.
+ * Only used by the emulation thread.
+ */
+public class Breakpoints {
+    private final List<Breakpoint> breakpoints = new ArrayList<>();
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+
+    // Addresses with a breakpoint and bytes under a watchpoint, rebuilt on every change
+    private final BitSet breakAddresses = new BitSet(Memory.SIZE);
+    private final BitSet readWatched = new BitSet(Memory.SIZE);
+    private final BitSet writeWatched = new BitSet(Memory.SIZE);
+
+    /**
+     * Why the machine stopped, null while running
+     */
+    @Getter
+    private String hit;
+
+    // Let the next instruction through without checking it
+    private boolean resumed;
+
+    public void add(Breakpoint breakpoint) {
+        breakpoints.add(breakpoint);
+        rebuild();
+    }
+
+    public void add(Watchpoint watchpoint) {
+        watchpoints.add(watchpoint);
+        rebuild();
+    }
+
+    public void remove(Breakpoint breakpoint) {
+        breakpoints.remove(breakpoint);
+        rebuild();
+    }
+
+    public void remove(Watchpoint watchpoint) {
+        watchpoints.remove(watchpoint);
+        rebuild();
+    }
+
+    public void clear() {
+        breakpoints.clear();
+        watchpoints.clear();
+        rebuild();
+    }
+
+    public List<Breakpoint> getBreakpoints() {
+        return Collections.unmodifiableList(breakpoints);
+    }
+
+    public List<Watchpoint> getWatchpoints() {
+        return Collections.unmodifiableList(watchpoints);
+    }
+
+    public boolean isEmpty() {
+        return breakpoints.isEmpty() && watchpoints.isEmpty();
+    }
+
+    /**
+     * Run the instruction the machine stopped in front of, checking starts again with the one after it
+     */
+    public void resume() {
+        if (hit != null) {
+            hit = null;
+            resumed = true;
+        }
+    }
+
+    private void rebuild() {
+        breakAddresses.clear();
+        readWatched.clear();
+        writeWatched.clear();
+
+        for (Breakpoint breakpoint : breakpoints)
+            breakAddresses.set(breakpoint.getAddress());
+        for (Watchpoint watchpoint : watchpoints) {
+            if ((watchpoint.getAccess() & Watchpoint.READ) != 0)
+                readWatched.set(watchpoint.getStart(), watchpoint.getEnd() + 1);
+            if ((watchpoint.getAccess() & Watchpoint.WRITE) != 0)
+                writeWatched.set(watchpoint.getStart(), watchpoint.getEnd() + 1);
+        }
+    }
+
+    // True if the decoded instruction about to run has to stop the machine
+    boolean check(Chip8 chip8, int entry) {
+        if (resumed) {
+            resumed = false;
+            return false;
+        }
+
+        int pc = chip8.getPc();
+        if (pc >= 0 && breakAddresses.get(pc)) {
+            for (Breakpoint breakpoint : breakpoints) {
+                if (breakpoint.getAddress() == pc && breakpoint.test(chip8)) {
+                    hit = "Breakpoint " + breakpoint;
+                    return true;
+                }
+            }
+        }
+
+        // Only the instructions that touch memory through I are checked against watchpoints
+        int op = entry & 0xFFFF;
+        int index = chip8.getIndex() & 0xFFFF;
+        switch (entry >>> 16) {
+            case Opcode.OP_DXYN:
+                return watched(readWatched, "read", pc, index, op & 0xF);
+            case Opcode.OP_FX65:
+                return watched(readWatched, "read", pc, index, (op >> 8 & 0xF) + 1);
+            case Opcode.OP_FX33:
+                return watched(writeWatched, "write", pc, index, 3);
+            case Opcode.OP_FX55:
+                return watched(writeWatched, "write", pc, index, (op >> 8 & 0xF) + 1);
+            default:
+                return false;
+        }
+    }
+
+    // Accesses wrap around the end of memory like the instructions do
+    private boolean watched(BitSet watched, String kind, int pc, int index, int length) {
+        for (int i = 0; i < length; i++) {
+            int address = (index + i) & (Memory.SIZE - 1);
+            if (watched.get(address)) {
+                hit = String.format("Watchpoint %s of %03X at %03X", kind, address, pc);
+                return true;
+            }
+        }
+        return false;
+    }
+}
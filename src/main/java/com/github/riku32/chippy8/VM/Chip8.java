@@ -2,22 +2,46 @@ package com.github.riku32.chippy8.VM;
 
 import lombok.Getter;
 import lombok.Setter;
-import org.msgpack.core.MessageBufferPacker;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessageUnpacker;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Random;
 
+/**
+ * CHIP-8 virtual machine
+ * Not thread safe, a machine must only be used by one thread at a time
+ */
 public class Chip8 {
+    /**
+     * Save state layout, all values big endian
+     * <pre>
+     * 0    magic "C8ST"       4    version          6    reserved
+     * 8    PC                 10   SP               12   I
+     * 14   DT                 15   ST               16   draw flag      17 reserved     20 RNG state
+     * 24   V0-VF              40   stack (16 x 16-bit)
+     * 72   framebuffer (32 x 64-bit rows)
+     * 328  memory (4096 bytes)
+     * </pre>
+     */
+    public static final int STATE_SIZE = 4424;
+    public static final int STATE_MAGIC = 0x43385354;
+    public static final short STATE_VERSION = 2;
+
+    /**
+     * Count instructions by opcode family, set with -Dchippy8.metrics=true
+     * Read once when the class loads, when off the JIT drops the counting entirely
+     */
+    public static final boolean METRICS = Boolean.getBoolean("chippy8.metrics");
+
     // 16 8-bit registers (VX) where X is 0-F
     @Getter
     private final byte[] V = new byte[16];
 
     // 4 kilobyte memory
     @Getter
-    private final short[] memory = new short[4096];
+    private final Memory memory = new Memory();
 
     // Stack 16 in size with 16-bit values
     @Getter
@@ -35,12 +59,24 @@ public class Chip8 {
     // Program counter, first 200 bits reserved
     private short pc = 0x200;
 
+    // Framebuffer, one 64-bit word per row with the leftmost pixel in the most significant bit
     @Getter
-    private final byte[] videoMemory = new byte[64*32];
+    private final long[] frameBuffer = new long[32];
+
+    // Predecoded instruction cache, one packed handler and opcode entry per address (see Opcode)
+    // Entries are cleared whenever the bytes they were decoded from are written
+    private final int[] decoded = new int[4096];
 
     private final Keypad keypad;
 
-    private final Random random = new Random();
+    // Time of the oldest input event applied since the last takeInputNanos(), 0 if none
+    private long inputNanos;
+
+    // Keys read by the last key instruction, replayed to the lockstep shadow so it does not take events itself
+    private int lastKeys;
+
+    // Xorshift state behind RND, saved with the machine so runs can be replayed exactly, never 0
+    private int random = seedRandom(System.nanoTime());
 
     // Two timers used internally by CHIP-8
     @Getter
@@ -51,16 +87,158 @@ public class Chip8 {
     @Getter
     private boolean drawFlag = true;
 
+    // Framebuffer rows changed since the last takeDirtyRows(), bit n is row n
+    private int dirtyRows = -1;
+
+    // Address after the loaded program and its analysis, made on first use
+    private int programEnd = 0x200;
+    private volatile Disassembly disassembly;
+
     /**
-     * While debugger has a paused flag this is needed internally
-     * To prevent cycles on other threads (which is usually ok) while changing internal contents during state/rom loads
+     * Fields with their own change stamp, see {@link #getStamp(int)}
+     * PC, I, V0-VF, DT, ST, then memory as a whole
      */
-    private boolean paused = false;
+    public static final int STAMP_PC = 0;
+    public static final int STAMP_INDEX = 1;
+    public static final int STAMP_REGISTERS = 2;
+    public static final int STAMP_DELAY_TIMER = 18;
+    public static final int STAMP_SOUND_TIMER = 19;
+    public static final int STAMP_MEMORY = 20;
+    public static final int STAMPS = 21;
+
+    // Stamp of the last stamp() that saw each field change, and the values that stamp() saw
+    // Taken between frames rather than on every write so the interpreter and compiled blocks pay nothing
+    private final long[] stamps = new long[STAMPS];
+    private final int[] stampedValues = new int[STAMPS];
+    private long stampClock;
+
+    // Advanced by every memory write and load, stands in for the memory contents in stamp()
+    private int memoryWrites;
+
+    // Instructions run through cycle() per opcode family (high nibble), only counted with METRICS
+    private final long[] opcodeCounts = new long[16];
+
+    /**
+     * Counts instructions per address while attached, null for no profiling
+     */
+    @Getter
+    private Profiler profiler;
+
+    /**
+     * Checked before every instruction while armed, null for none
+     */
+    @Getter
+    private Breakpoints breakpoints;
+
+    /**
+     * Records every instruction while attached, null for no tracing
+     */
+    @Getter
+    private Tracer tracer;
+
+    // A profiler, breakpoints or a tracer are attached, cycle() only leaves its fast path while set
+    private boolean instrumented;
+
+    // Attached block compiler, notified when code it may have compiled is overwritten
+    private Recompiler recompiler;
 
     public Chip8(Keypad keypad) {
         this.keypad = keypad;
     }
 
+    /**
+     * Decrement the delay and sound timers, called at 60hz
+     */
+    public void tickTimers() {
+        if (delayTimer != 0)
+            delayTimer--;
+
+        if (soundTimer != 0)
+            soundTimer--;
+    }
+
+    /**
+     * Hash of the current video memory (64-bit FNV-1a), used to compare frames between runs
+     *
+     * @return hash
+     */
+    public long frameHash() {
+        long hash = 0xCBF29CE484222325L;
+        for (long row : frameBuffer) {
+            hash ^= row;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Check if a pixel is set
+     *
+     * @param x column, 0-63
+     * @param y row, 0-31
+     * @return pixel set
+     */
+    public boolean getPixel(int x, int y) {
+        return frameBuffer[y] << x < 0;
+    }
+
+    /**
+     * Compatibility view of the framebuffer with one byte per pixel, 1 when set
+     *
+     * @return new 64*32 array in row order
+     */
+    public byte[] getVideoMemory() {
+        byte[] videoMemory = new byte[64*32];
+        copyVideoMemory(videoMemory);
+        return videoMemory;
+    }
+
+    /**
+     * Expand the framebuffer into one byte per pixel
+     *
+     * @param videoMemory 64*32 destination in row order
+     */
+    public void copyVideoMemory(byte[] videoMemory) {
+        for (int y = 0; y < 32; y++) {
+            long row = frameBuffer[y];
+            for (int x = 0; x < 64; x++)
+                videoMemory[y * 64 + x] = (byte) (row >>> (63 - x) & 1);
+        }
+    }
+
+    /**
+     * Rows of the framebuffer changed since the last call, clears the mask
+     *
+     * @return mask with bit n set if row n changed
+     */
+    public int takeDirtyRows() {
+        int rows = dirtyRows;
+        dirtyRows = 0;
+        return rows;
+    }
+
+    /**
+     * Instructions run per opcode family, index n counts opcodes nXXX
+     * Only counted with {@link #METRICS}, compiled blocks are not counted. Other threads may see slightly old counts
+     *
+     * @return copy of the counts
+     */
+    public long[] opcodeCounts() {
+        return opcodeCounts.clone();
+    }
+
+    /**
+     * When the oldest input event applied since the last call happened, clears it
+     * Compared against the time a frame is shown this is the input latency
+     *
+     * @return System.nanoTime() of the event, or 0 if no event was applied
+     */
+    public long takeInputNanos() {
+        long nanos = inputNanos;
+        inputNanos = 0;
+        return nanos;
+    }
+
     /**
      * Reset draw flag
      */
@@ -72,9 +250,12 @@ public class Chip8 {
      * Load a ROM from byte buffer
      *
      * @param rom byte buffer
+     * @throws IllegalArgumentException if the ROM does not fit in memory
      */
     public void loadRom(byte[] rom) {
-        paused = true;
+        if (rom.length > Memory.SIZE - 0x200)
+            throw new IllegalArgumentException(String.format("ROM is %d bytes, at most %d fit in memory",
+                    rom.length, Memory.SIZE - 0x200));
 
         // Reset values
         pc = 0x200;
@@ -84,13 +265,21 @@ public class Chip8 {
 
         Arrays.fill(stack, (short) 0);
         Arrays.fill(V, (byte) 0);
-        Arrays.fill(videoMemory, (byte) 0);
-        System.arraycopy(Constants.FONT_SET, 0, memory, 0, Constants.FONT_SET.length);
+        Arrays.fill(frameBuffer, 0);
+        dirtyRows = -1;
+
+        memory.clear();
+        for (int i = 0; i < Constants.FONT_SET.length; i++)
+            memory.write(i, Constants.FONT_SET[i]);
+        memory.load(0x200, rom);
+        programEnd = 0x200 + rom.length;
+        disassembly = null;
 
-        for (int i = 0; i < rom.length; i++)
-            this.memory[i + 0x200] = (short) (rom[i] & 0xFF);
+        Arrays.fill(decoded, 0);
+        if (recompiler != null)
+            recompiler.invalidateAll();
 
-        paused = false;
+        memoryWrites++;
     }
 
     /**
@@ -98,55 +287,106 @@ public class Chip8 {
      *
      * @return state
      */
-    public byte[] saveState() throws IOException {
-        paused = true;
-
-        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
-
-        packer.packShort(pc);
-        packer.packShort(sp);
-        packer.packShort(index);
-
-        // Registers
-        packer.packArrayHeader(V.length);
-        for (byte val : V)
-            packer.packByte(val);
+    public byte[] saveState() {
+        byte[] state = new byte[STATE_SIZE];
+        saveState(ByteBuffer.wrap(state));
+        return state;
+    }
 
-        // Stack
-        packer.packArrayHeader(stack.length);
+    /**
+     * Write the full machine state at the buffer position, see {@link #STATE_SIZE} for the layout
+     * Nothing is allocated, so this can be called every frame into a reused buffer
+     *
+     * @param buffer with at least {@link #STATE_SIZE} bytes remaining, position is advanced past the state
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(STATE_MAGIC);
+        buffer.putShort(STATE_VERSION);
+        buffer.putShort((short) 0);
+
+        buffer.putShort(pc);
+        buffer.putShort(sp);
+        buffer.putShort(index);
+        buffer.put(delayTimer);
+        buffer.put(soundTimer);
+        buffer.put((byte) (drawFlag ? 1 : 0));
+        buffer.put((byte) 0).putShort((short) 0).putInt(random);
+
+        buffer.put(V);
         for (short val : stack)
-            packer.packShort(val);
-
-        // Memory
-        packer.packArrayHeader(memory.length);
-        for (short val : memory)
-            packer.packShort(val);
-
-        // VRAM
-        packer.packArrayHeader(videoMemory.length);
-        for (byte val : videoMemory)
-            packer.packByte(val);
-
-        packer.close();
-
-        paused = false;
-
-        return packer.toByteArray();
+            buffer.putShort(val);
+        for (long row : frameBuffer)
+            buffer.putLong(row);
+        memory.saveTo(buffer);
     }
 
     /**
      * Load a state from byte buffer
+     * States from before the binary format (MessagePack) are still accepted
      *
      * @param state byte buffer
      */
     public void loadState(byte[] state) throws IOException {
-        paused = true;
+        if (state.length >= 4 && ByteBuffer.wrap(state).getInt() == STATE_MAGIC)
+            loadState(ByteBuffer.wrap(state));
+        else
+            loadLegacyState(state);
+    }
 
+    /**
+     * Read a full machine state written by {@link #saveState(ByteBuffer)} from the buffer position
+     *
+     * @param buffer containing the state, position is advanced past the state
+     * @throws IOException if the buffer does not hold a state of a supported version
+     */
+    public void loadState(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < STATE_SIZE)
+            throw new IOException("State is truncated");
+
+        int start = buffer.position();
+        if (buffer.getInt() != STATE_MAGIC)
+            throw new IOException("Not a Chippy8 state");
+
+        // Version 1 states have no RNG state, the current one is kept
+        short version = buffer.getShort();
+        if (version != STATE_VERSION && version != 1)
+            throw new IOException(String.format("Unsupported state version %d", version));
+
+        buffer.position(start + 8);
+        pc = buffer.getShort();
+        sp = buffer.getShort();
+        index = buffer.getShort();
+        delayTimer = buffer.get();
+        soundTimer = buffer.get();
+        drawFlag = buffer.get() != 0;
+        if (version >= 2)
+            random = buffer.getInt(start + 20);
+        buffer.position(start + 24);
+
+        buffer.get(V);
+        for (int i = 0; i < stack.length; i++)
+            stack[i] = buffer.getShort();
+        for (int i = 0; i < frameBuffer.length; i++)
+            frameBuffer[i] = buffer.getLong();
+        dirtyRows = -1;
+        memory.loadFrom(buffer);
+
+        Arrays.fill(decoded, 0);
+        if (recompiler != null)
+            recompiler.invalidateAll();
+
+        stateLoaded();
+    }
+
+    // Read a MessagePack state, these do not include timers or the draw flag
+    private void loadLegacyState(byte[] state) throws IOException {
         MessageUnpacker unpack = MessagePack.newDefaultUnpacker(state);
 
         pc = unpack.unpackShort();
         sp = unpack.unpackShort();
         index = unpack.unpackShort();
+        delayTimer = soundTimer = 0;
+        drawFlag = true;
 
         // Registers
         int lenRegister = unpack.unpackArrayHeader();
@@ -161,16 +401,23 @@ public class Chip8 {
         // Memory
         int lenMemory = unpack.unpackArrayHeader();
         for (int i = 0; i < lenMemory; i++)
-            memory[i] = unpack.unpackShort();
+            memory.write(i, unpack.unpackShort());
 
         // VRAM
         int lenVRAM = unpack.unpackArrayHeader();
+        Arrays.fill(frameBuffer, 0);
         for (int i = 0; i < lenVRAM; i++)
-            videoMemory[i] = unpack.unpackByte();
+            if (unpack.unpackByte() != 0)
+                frameBuffer[i / 64] |= 1L << (63 - i % 64);
+        dirtyRows = -1;
 
         unpack.close();
 
-        paused = false;
+        Arrays.fill(decoded, 0);
+        if (recompiler != null)
+            recompiler.invalidateAll();
+
+        stateLoaded();
     }
 
     /**
@@ -178,264 +425,342 @@ public class Chip8 {
      *
      */
     public void cycle() {
-        // Do not run cycle if paused
-        if (paused) return;
-
-        switch (op() & 0xF000) {
-            case 0x000:
-                switch (op()) {
-                    case 0x00E0:
-                        op_00E0();
-                        return;
-                    case 0x00EE:
-                        op_00EE();
-                        return;
-                }
-            case 0x1000:
-                op_1NNN();
-                return;
-            case 0x2000:
-                op_2NNN();
-                return;
-            case 0x3000:
-                op_3XKK();
-                return;
-            case 0x4000:
-                op_4XKK();
-                return;
-            case 0x5000:
-                op_5XY0();
-                return;
-            case 0x6000:
-                op_6XKK();
-                return;
-            case 0x7000:
-                op_7XKK();
-                return;
-            case 0x8000:
-                switch (opN()) {
-                    case 0x0000:
-                        op_8XY0();
-                        return;
-                    case 0x0001:
-                        op_8XY1();
-                        return;
-                    case 0x0002:
-                        op_8XY2();
-                        return;
-                    case 0x0003:
-                        op_8XY3();
-                        return;
-                    case 0x0004:
-                        op_8XY4();
-                        return;
-                    case 0x0005:
-                        op_8XY5();
-                        return;
-                    case 0x0006:
-                        op_8XY6();
-                        return;
-                    case 0x0007:
-                        op_8XY7();
-                        return;
-                    case 0x000E:
-                        op_8XYE();
-                        return;
-                }
-            case 0x9000:
-                op_9XY0();
-                return;
-            case 0xA000:
-                op_ANNN();
-                return;
-            case 0xB000:
-                op_BNNN();
-                return;
-            case 0xC000:
-                op_CXKK();
-                return;
-            case 0xD000:
-                op_DXYN();
-                return;
-            case 0xE000:
-                switch (opKK()) {
-                    case (byte) 0x009E:
-                        op_EX9E();
-                        return;
-                    case (byte) 0x00A1:
-                        op_EXA1();
-                        return;
-                }
-            case 0xF000:
-                switch(opKK()) {
-                    case 0x0007:
-                        op_FX07();
-                        return;
-                    case 0x000A:
-                        op_FX0A();
-                        return;
-                    case 0x0015:
-                        op_FX15();
-                        return;
-                    case 0x0018:
-                        op_FX18();
-                        return;
-                    case 0x001E:
-                        op_FX1E();
-                        return;
-                    case 0x0029:
-                        op_FX29();
-                        return;
-                    case 0x0033:
-                        op_FX33();
-                        return;
-                    case 0x0055:
-                        op_FX55();
-                        return;
-                    case 0x0065:
-                        op_FX65();
-                        return;
-                }
+        int entry = pc >= 0 && pc < decoded.length ? decoded[pc] : Opcode.NOP << 16;
+        if (entry == 0)
+            entry = decode(pc);
+
+        if (instrumented && !instrument(entry))
+            return;
+
+        int op = entry & 0xFFFF;
+        if (METRICS)
+            opcodeCounts[op >>> 12]++;
+
+        switch (entry >>> 16) {
+            case Opcode.OP_00E0:
+                op_00E0();
+                return;
+            case Opcode.OP_00EE:
+                op_00EE();
+                return;
+            case Opcode.OP_1NNN:
+                op_1NNN(op);
+                return;
+            case Opcode.OP_2NNN:
+                op_2NNN(op);
+                return;
+            case Opcode.OP_3XKK:
+                op_3XKK(op);
+                return;
+            case Opcode.OP_4XKK:
+                op_4XKK(op);
+                return;
+            case Opcode.OP_5XY0:
+                op_5XY0(op);
+                return;
+            case Opcode.OP_6XKK:
+                op_6XKK(op);
+                return;
+            case Opcode.OP_7XKK:
+                op_7XKK(op);
+                return;
+            case Opcode.OP_8XY0:
+                op_8XY0(op);
+                return;
+            case Opcode.OP_8XY1:
+                op_8XY1(op);
+                return;
+            case Opcode.OP_8XY2:
+                op_8XY2(op);
+                return;
+            case Opcode.OP_8XY3:
+                op_8XY3(op);
+                return;
+            case Opcode.OP_8XY4:
+                op_8XY4(op);
+                return;
+            case Opcode.OP_8XY5:
+                op_8XY5(op);
+                return;
+            case Opcode.OP_8XY6:
+                op_8XY6(op);
+                return;
+            case Opcode.OP_8XY7:
+                op_8XY7(op);
+                return;
+            case Opcode.OP_8XYE:
+                op_8XYE(op);
+                return;
+            case Opcode.OP_9XY0:
+                op_9XY0(op);
+                return;
+            case Opcode.OP_ANNN:
+                op_ANNN(op);
+                return;
+            case Opcode.OP_BNNN:
+                op_BNNN(op);
+                return;
+            case Opcode.OP_CXKK:
+                op_CXKK(op);
+                return;
+            case Opcode.OP_DXYN:
+                op_DXYN(op);
+                return;
+            case Opcode.OP_EX9E:
+                op_EX9E(op);
+                return;
+            case Opcode.OP_EXA1:
+                op_EXA1(op);
+                return;
+            case Opcode.OP_FX07:
+                op_FX07(op);
+                return;
+            case Opcode.OP_FX0A:
+                op_FX0A(op);
+                return;
+            case Opcode.OP_FX15:
+                op_FX15(op);
+                return;
+            case Opcode.OP_FX18:
+                op_FX18(op);
+                return;
+            case Opcode.OP_FX1E:
+                op_FX1E(op);
+                return;
+            case Opcode.OP_FX29:
+                op_FX29(op);
+                return;
+            case Opcode.OP_FX33:
+                op_FX33(op);
+                return;
+            case Opcode.OP_FX55:
+                op_FX55(op);
+                return;
+            case Opcode.OP_FX65:
+                op_FX65(op);
+                return;
             default:
-                // Skip over invalid instruction (NOP)
-                pc += 2;
+                op_NOP();
         }
     }
 
+    // Profile, check breakpoints and trace the instruction about to run, false if a breakpoint stopped it
+    private boolean instrument(int entry) {
+        if (breakpoints != null && breakpoints.check(this, entry))
+            return false;
+        if (profiler != null)
+            profiler.hit(pc);
+        if (tracer != null)
+            tracer.record(entry);
+        return true;
+    }
+
+    // Profiling, breakpoints and traces have to see every instruction, compiled blocks would run past them
+    boolean interpreted() {
+        return instrumented;
+    }
+
+    private void updateInstrumented() {
+        instrumented = profiler != null || breakpoints != null || tracer != null;
+    }
+
     /**
-     * Get string representation of opcode at program counter
+     * Attach a profiler, counting starts with the next instruction
+     *
+     * @param profiler to count into, null to stop profiling
      */
-    public String disassembleOpcode(short pc) {
-        switch (op(pc) & 0xF000) {
-            case 0x000:
-                switch (op(pc)) {
-                    case 0x00E0: return "CLS";
-                    case 0x00EE: return "RET";
-                }
-            case 0x1000: return String.format("JP %X", opNNN(pc));
-            case 0x2000: return String.format("CALL %X", opNNN(pc));
-            case 0x3000: return String.format("SE V%X, %X", opX(pc), opKK(pc));
-            case 0x4000: return String.format("SNE V%X, %X", opX(pc), opKK(pc));
-            case 0x5000: return String.format("SE V%X, V%X", opX(pc), opY(pc));
-            case 0x6000: return String.format("LD V%X, %X", opX(pc), opKK(pc));
-            case 0x7000: return String.format("ADD V%X, %X", opX(pc), opKK(pc));
-            case 0x8000:
-                switch (opN(pc)) {
-                    case 0x0000: return String.format("LD V%X, V%X", opX(pc), opY(pc));
-                    case 0x0001: return String.format("OR V%X, V%X", opX(pc), opY(pc));
-                    case 0x0002: return String.format("AND V%X, V%X", opX(pc), opY(pc));
-                    case 0x0003: return String.format("XOR V%X, V%X", opX(pc), opY(pc));
-                    case 0x0004: return String.format("ADD V%X, V%X", opX(pc), opY(pc));
-                    case 0x0005: return String.format("SUB V%X, V%X", opX(pc), opY(pc));
-                    case 0x0006: return String.format("SHR V%X", opX(pc));
-                    case 0x0007: return String.format("SUBN V%X, V%X", opX(pc), opY(pc));
-                    case 0x000E: return String.format("SHL V%X", opX(pc));
-                }
-            case 0x9000: return String.format("SNE V%X, V%X", opX(pc), opY(pc));
-            case 0xA000: return String.format("LD I, %X", opNNN(pc));
-            case 0xB000: return "JP V0, nnn";
-            case 0xC000: return String.format("RND V%X, %X", opX(pc), opKK(pc));
-            case 0xD000: return String.format("DRW V%X, V%X, %X", opX(pc), opY(pc), opN(pc));
-            case 0xE000:
-                switch (opKK(pc)) {
-                    case (byte) 0x009E: return String.format("SKP V%X", opX(pc));
-                    case (byte) 0x00A1: return String.format("SKNP V%X", opX(pc));
-                }
-            case 0xF000:
-                switch(opKK(pc)) {
-                    case 0x0007: return String.format("LD V%X, DT", opX(pc));
-                    case 0x000A: return String.format("LD V%X, K", opX(pc));
-                    case 0x0015: return String.format("LD DT, V%X", opX(pc));
-                    case 0x0018: return String.format("LD ST, V%X", opX(pc));
-                    case 0x001E: return String.format("ADD I, V%X", opX(pc));
-                    case 0x0029: return String.format("LD F, V%X", opX(pc));
-                    case 0x0033: return String.format("LD B, V%X", opX(pc));
-                    case 0x0055: return String.format("LD [I], V%X", opX(pc));
-                    case 0x0065: return String.format("LD V%X, [I]", opX(pc));
-                }
-            default: return "NOP"; // No operation
-        }
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        updateInstrumented();
     }
 
-    // Get opcode at program counter
-    private short op() { return op(pc); }
-    private short op(short pc) {
-        if (pc < 0 || pc >= memory.length - 1)
-            return 0;
-        return (short) (memory[pc] << 8 | memory[pc + 1]);
+    /**
+     * Arm breakpoints, arm again after changing them so an empty set is not checked
+     *
+     * @param breakpoints to check before every instruction, null or empty to run without checks
+     */
+    public void setBreakpoints(Breakpoints breakpoints) {
+        this.breakpoints = breakpoints == null || breakpoints.isEmpty() ? null : breakpoints;
+        updateInstrumented();
     }
 
-    // Lower nybble of high byte
-    private byte opX() {
-        return opX(pc);
+    /**
+     * Attach a tracer, recording starts with the next instruction
+     *
+     * @param tracer to record into, null to stop tracing, {@link Tracer#finish()} it after detaching
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        updateInstrumented();
     }
-    private byte opX(short pc) {
-        return (byte) (op(pc) >> 8 & 0x000F);
+
+    // Decode the opcode at address into the decode cache
+    private int decode(short address) {
+        int entry = Opcode.entry(op(address));
+        decoded[address] = entry;
+        return entry;
     }
 
-    // Upper nybble of high byte
-    private byte opY() {
-        return opY(pc);
+    // States do not record the ROM size, treat everything up to the last non-zero byte as the program
+    private void stateLoaded() {
+        memoryWrites++;
+        programEnd = Memory.SIZE;
+        while (programEnd > 0x200 && memory.read(programEnd - 1) == 0)
+            programEnd--;
+        disassembly = null;
     }
-    private byte opY(short pc) {
-        return (byte) (op(pc) >> 4 & 0x000F);
+
+    // Write a byte to memory, dropping cached decodes that overlap it
+    private void write(int address, int value) {
+        address &= Memory.SIZE - 1;
+        memory.write(address, value);
+        memoryWrites++;
+
+        decoded[address] = 0;
+        decoded[(address - 1) & (Memory.SIZE - 1)] = 0;
+
+        if (recompiler != null)
+            recompiler.invalidate(address);
     }
 
-    // Lowest 4 bits
-    private byte opN() {
-        return opN(pc);
+    void attach(Recompiler recompiler) {
+        this.recompiler = recompiler;
     }
-    private byte opN(short pc) {
-        return (byte) (op(pc) & 0x000F);
+
+    int getLastKeys() {
+        return lastKeys;
     }
 
-    // Lowest 8 bits
-    private byte opKK() {
-        return opKK(pc);
+    int opcodeAt(int address) {
+        return op((short) address) & 0xFFFF;
     }
-    private byte opKK(short pc) {
-        return (byte) (op(pc) & 0x00FF);
+
+    /**
+     * Stamp every field that changed since the last call, called by views of the machine once per frame
+     *
+     * @return stamp of the most recent change to any field, unchanged while the machine is
+     */
+    public long stamp() {
+        stampClock++;
+        boolean changed = stamp(STAMP_PC, pc & 0xFFFF);
+        changed |= stamp(STAMP_INDEX, index & 0xFFFF);
+        for (int i = 0; i < V.length; i++)
+            changed |= stamp(STAMP_REGISTERS + i, V[i] & 0xFF);
+        changed |= stamp(STAMP_DELAY_TIMER, delayTimer & 0xFF);
+        changed |= stamp(STAMP_SOUND_TIMER, soundTimer & 0xFF);
+        changed |= stamp(STAMP_MEMORY, memoryWrites);
+
+        // The clock only moves for changes so unchanged machines keep returning the same stamp
+        if (!changed)
+            stampClock--;
+        return stampClock;
     }
 
-    // Lowest 12 bits
-    private short opNNN() {
-        return opNNN(pc);
+    private boolean stamp(int field, int value) {
+        if (stampedValues[field] == value)
+            return false;
+        stampedValues[field] = value;
+        stamps[field] = stampClock;
+        return true;
     }
-    private short opNNN(short pc) {
-        return (short) (op(pc) & 0x0FFF);
+
+    /**
+     * Stamp of the last change to a field as seen by {@link #stamp()}, views redraw a field only when this moved
+     *
+     * @param field one of the STAMP constants, registers are STAMP_REGISTERS plus their number
+     * @return stamp, 0 if the field never changed
+     */
+    public long getStamp(int field) {
+        return stamps[field];
     }
 
-    // Put pixel on screen (with wrapping)
-    private boolean setPixel(int x, int y) {
-        if (x > 63) {
-            x -= 63;
-        } else if (x < 0) {
-            x += 63;
-        }
+    /**
+     * Seed the random number generator used by RND, two machines with the same seed and input run identically
+     *
+     * @param seed any value
+     */
+    public void setSeed(long seed) {
+        random = seedRandom(seed);
+    }
 
-        if (y > 31) {
-            y -= 31;
-        } else if (y < 0) {
-            y += 31;
-        }
+    // Spread a seed over the xorshift state, which must not be 0
+    private static int seedRandom(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xFF51AFD7ED558CCDL;
+        seed ^= seed >>> 33;
+        int state = (int) (seed ^ (seed >>> 32));
+        return state == 0 ? 0x9E3779B9 : state;
+    }
 
-        int location = x + (y * 64);
-        this.videoMemory[location] ^= 1;
+    // Next value of the xorshift generator
+    private int nextRandom() {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random;
+    }
 
-        return this.videoMemory[location] != 1;
+    /**
+     * Get string representation of opcode at program counter
+     */
+    public String disassembleOpcode(short pc) {
+        return Disassembly.format(opcodeAt(pc));
+    }
+
+    /**
+     * Static analysis of the loaded program, made on first use after each ROM or state load
+     *
+     * @return analysis
+     */
+    public Disassembly getDisassembly() {
+        Disassembly analysis = disassembly;
+        if (analysis == null)
+            disassembly = analysis = Disassembly.analyze(memory, programEnd);
+        return analysis;
+    }
+
+    // Get opcode at address
+    private short op(short pc) {
+        return (short) memory.readWord(pc);
+    }
+
+    // Operand extractors for an already fetched opcode
+    private static byte argX(int op) {
+        return (byte) (op >> 8 & 0x000F);
+    }
+
+    private static byte argY(int op) {
+        return (byte) (op >> 4 & 0x000F);
+    }
+
+    private static byte argN(int op) {
+        return (byte) (op & 0x000F);
+    }
+
+    private static byte argKK(int op) {
+        return (byte) (op & 0x00FF);
+    }
+
+    private static short argNNN(int op) {
+        return (short) (op & 0x0FFF);
+    }
+
+    // Skip over invalid instruction
+    void op_NOP() {
+        pc += 2;
     }
 
     // CLS
-    private void op_00E0() {
+    void op_00E0() {
         // Clear video memory
-        Arrays.fill(videoMemory, (byte) 0x0);
+        Arrays.fill(frameBuffer, 0);
+        dirtyRows = -1;
 
         drawFlag = true;
         pc += 2;
     }
 
     // RET
-    private void op_00EE() {
+    void op_00EE() {
         if (sp > 0) {
             --sp;
             pc = stack[sp];
@@ -445,258 +770,269 @@ public class Chip8 {
     }
 
     // JP addr
-    private void op_1NNN() {
-        pc = opNNN();
+    void op_1NNN(int op) {
+        pc = argNNN(op);
     }
 
     // CALL addr
-    private void op_2NNN() {
+    void op_2NNN(int op) {
         stack[sp++] = pc; // Store current pc at top of stack
-        pc = opNNN(); // Set pc to opcode argument
+        pc = argNNN(op); // Set pc to opcode argument
     }
 
     // SE Vx, byte
-    private void op_3XKK() {
-        if (V[opX()] == opKK()) pc += 2;
+    void op_3XKK(int op) {
+        if (V[argX(op)] == argKK(op)) pc += 2;
 
         pc += 2;
     }
 
     // SNE Vx, byte
-    private void op_4XKK() {
-        if (V[opX()] != opKK()) pc += 2;
+    void op_4XKK(int op) {
+        if (V[argX(op)] != argKK(op)) pc += 2;
 
         pc += 2;
     }
 
     // SE Vx, Vy
-    private void op_5XY0() {
-        if (V[opX()] == V[opY()]) pc += 2;
+    void op_5XY0(int op) {
+        if (V[argX(op)] == V[argY(op)]) pc += 2;
 
         pc += 2;
     }
 
     // LD Vx, byte
-    private void op_6XKK() {
-        V[opX()] = opKK();
+    void op_6XKK(int op) {
+        V[argX(op)] = argKK(op);
 
         pc += 2;
     }
 
     // ADD Vx, byte
-    private void op_7XKK() {
-        V[opX()] += opKK();
+    void op_7XKK(int op) {
+        V[argX(op)] += argKK(op);
 
         pc += 2;
     }
 
     // LD Vx, Vy
-    private void op_8XY0() {
-        V[opX()] = V[opY()];
+    void op_8XY0(int op) {
+        V[argX(op)] = V[argY(op)];
 
         pc += 2;
     }
 
     // OR Vx, Vy
-    private void op_8XY1() {
-        V[opX()] |= V[opY()];
+    void op_8XY1(int op) {
+        V[argX(op)] |= V[argY(op)];
 
         pc += 2;
     }
 
     // AND Vx, Vy
-    private void op_8XY2() {
-        V[opX()] &= V[opY()];
+    void op_8XY2(int op) {
+        V[argX(op)] &= V[argY(op)];
 
         pc += 2;
     }
 
     // XOR Vx, Vy
-    private void op_8XY3() {
-        V[opX()] ^= V[opY()];
+    void op_8XY3(int op) {
+        V[argX(op)] ^= V[argY(op)];
 
         pc += 2;
     }
 
     // ADD Vx, Vy
-    private void op_8XY4() {
+    void op_8XY4(int op) {
         // VF is set to 1 if the result was greater than 255, otherwise 0
-        byte sum = (byte) (V[opX()] + V[opY()]);
-        V[15] = (byte) (((sum & 0xff) < (V[opY()] & 0xff) || (sum & 0xff) < (V[opX()] & 0xff)) ? 1 : 0);
-        V[opX()] = sum;
+        byte sum = (byte) (V[argX(op)] + V[argY(op)]);
+        V[15] = (byte) (((sum & 0xff) < (V[argY(op)] & 0xff) || (sum & 0xff) < (V[argX(op)] & 0xff)) ? 1 : 0);
+        V[argX(op)] = sum;
 
         pc += 2;
     }
 
     // SUB Vx, Vy
-    private void op_8XY5() {
+    void op_8XY5(int op) {
         // VF is set to 1 if Vx > Vy, otherwise 0
-        V[15] = (byte) ((V[opY()] > V[opX()]) ? 0 : 1);
+        V[15] = (byte) ((V[argY(op)] > V[argX(op)]) ? 0 : 1);
 
         // Subtract
-        V[opX()] -= V[opY()];
+        V[argX(op)] -= V[argY(op)];
 
         pc += 2;
     }
 
     // SHR Vx
-    private void op_8XY6() {
-        V[15] = (byte) (V[opX()] & 1);
-        V[opX()] = (byte) ((V[opX()] & 0xFF) >>> 1);
+    void op_8XY6(int op) {
+        V[15] = (byte) (V[argX(op)] & 1);
+        V[argX(op)] = (byte) ((V[argX(op)] & 0xFF) >>> 1);
 
         pc += 2;
     }
 
     // SUBN Vx, Vy
-    private void op_8XY7() {
-        V[15] = (byte) ((V[opX()] > V[opY()]) ? 0 : 1);
-        V[opX()] = (byte) (V[opY()] - V[opX()]);
+    void op_8XY7(int op) {
+        V[15] = (byte) ((V[argX(op)] > V[argY(op)]) ? 0 : 1);
+        V[argX(op)] = (byte) (V[argY(op)] - V[argX(op)]);
 
         pc += 2;
     }
 
     // SHL Vx
-    private void op_8XYE() {
-        V[15] = (byte) (((V[opX()] & 0x80) != 0) ? 1 : 0);
-        V[opX()] = (byte) ((V[opX()] & 0xFF) << 1);
+    void op_8XYE(int op) {
+        V[15] = (byte) (((V[argX(op)] & 0x80) != 0) ? 1 : 0);
+        V[argX(op)] = (byte) ((V[argX(op)] & 0xFF) << 1);
 
         pc += 2;
     }
 
     // SNE Vx, Vy
-    private void op_9XY0() {
-        if (V[opX()] != V[opY()]) pc += 2;
+    void op_9XY0(int op) {
+        if (V[argX(op)] != V[argY(op)]) pc += 2;
 
         pc += 2;
     }
 
     // LD I, addr
-    private void op_ANNN() {
-        index = opNNN();
+    void op_ANNN(int op) {
+        index = argNNN(op);
 
         pc += 2;
     }
 
     // JP V0, addr
-    private void op_BNNN() {
-        pc = (short) (V[0] & 0xff + opNNN() & 0xfff);
+    void op_BNNN(int op) {
+        pc = (short) (V[0] & 0xff + argNNN(op) & 0xfff);
     }
 
     // RND Vx, byte
-    private void op_CXKK() {
-        V[opX()] = (byte) (random.nextInt(256) & opKK());
+    void op_CXKK(int op) {
+        V[argX(op)] = (byte) ((nextRandom() >>> 24) & argKK(op));
 
         pc += 2;
     }
 
     // DRW Vx, Vy, nibble
-    private void op_DXYN() {
-        this.V[15] = 0;
-        for (int y = 0; y < opN(); y++) {
-            int pixel = this.memory[this.index + y];
-            for (int x = 0; x < 8; x++) {
-                if ((pixel & 0x80) > 0) {
-                    if (setPixel(V[opX()] + x, V[opY()] + y)) {
-                        V[15] = 1;
-                    }
-                }
-
-                pixel <<= 1;
-            }
+    void op_DXYN(int op) {
+        int x = V[argX(op)] & 63;
+        int y = V[argY(op)] & 31;
+
+        // Each sprite row is placed in a row word and rotated into position, wrapping around the edges
+        long collision = 0;
+        for (int row = 0; row < argN(op); row++) {
+            long sprite = Long.rotateRight((long) memory.read(index + row) << 56, x);
+            int line = (y + row) & 31;
+
+            collision |= frameBuffer[line] & sprite;
+            frameBuffer[line] ^= sprite;
+            dirtyRows |= 1 << line;
         }
 
+        V[15] = (byte) (collision != 0 ? 1 : 0);
+
         drawFlag = true;
         pc += 2;
     }
 
+    // Keys as seen by the instruction about to run, bit n is key n
+    // Queued events are applied one at a time, the live state is only read once the queue is empty
+    private int readKeys() {
+        KeypadEvent event = keypad.poll();
+        if (event == null)
+            return lastKeys = keypad.state();
+
+        if (inputNanos == 0)
+            inputNanos = event.getNanos();
+        return lastKeys = event.getState();
+    }
+
     // SKP Vx
-    private void op_EX9E() {
-        if (keypad.pressed(V[opX()] & 0x0F)) pc += 2;
+    void op_EX9E(int op) {
+        if ((readKeys() >> (V[argX(op)] & 0x0F) & 1) != 0) pc += 2;
 
         pc += 2;
     }
 
     // SKNP Vx
-    private void op_EXA1() {
-        if (!keypad.pressed(V[opX()] & 0x0F)) pc += 2;
+    void op_EXA1(int op) {
+        if ((readKeys() >> (V[argX(op)] & 0x0F) & 1) == 0) pc += 2;
 
         pc += 2;
     }
 
     // LD Vx, DT
-    private void op_FX07() {
-        V[opX()] = delayTimer;
+    void op_FX07(int op) {
+        V[argX(op)] = delayTimer;
 
         pc += 2;
     }
 
     // LD Vx, K
-    private void op_FX0A() {
-        boolean pressed = false;
-        for (int i = 0; i < 16; i++) {
-            if (keypad.pressed(i)) {
-                V[opX()] = (byte) i;
-                pressed = true;
-            }
-        }
+    void op_FX0A(int op) {
+        int keys = readKeys() & 0xFFFF;
 
         // If no key was pressed wait for a key press, do not continue
-        if (pressed)
+        // With several keys held the highest one wins
+        if (keys != 0) {
+            V[argX(op)] = (byte) (31 - Integer.numberOfLeadingZeros(keys));
             pc += 2;
+        }
     }
 
     // LD DT, Vx
-    private void op_FX15() {
-        delayTimer = V[opX()];
+    void op_FX15(int op) {
+        delayTimer = V[argX(op)];
 
         pc += 2;
     }
 
     // LD ST, Vx
-    private void op_FX18() {
-        soundTimer = V[opX()];
+    void op_FX18(int op) {
+        soundTimer = V[argX(op)];
 
         pc += 2;
     }
 
     // ADD I, Vx
-    private void op_FX1E() {
-        V[15] = (byte) (V[opX()] & 0xFF + index & 0xFFFF);
-        index += V[opX()];
+    void op_FX1E(int op) {
+        V[15] = (byte) (V[argX(op)] & 0xFF + index & 0xFFFF);
+        index += V[argX(op)];
 
         pc += 2;
     }
 
     // LD F, Vx
-    private void op_FX29() {
-        index = (short) (V[opX()] * 5);
+    void op_FX29(int op) {
+        index = (short) (V[argX(op)] * 5);
 
         pc += 2;
     }
 
     // LD B, Vx
-    private void op_FX33() {
-        int uVX = V[opX()] & 0xff;
+    void op_FX33(int op) {
+        int uVX = V[argX(op)] & 0xff;
 
-        memory[index] = (short) ((uVX % 1000) / 100);
-        memory[index+1] = (short) ((uVX % 100) / 10);
-        memory[index+2] = (short) (uVX % 10);
+        write(index, (uVX % 1000) / 100);
+        write(index+1, (uVX % 100) / 10);
+        write(index+2, uVX % 10);
 
         pc += 2;
     }
 
     // LD [I], Vx
-    private void op_FX55() {
-        for (int i = 0; i <= opX(); i++)
-            memory[index+i] = V[i];
+    void op_FX55(int op) {
+        for (int i = 0; i <= argX(op); i++)
+            write(index+i, V[i]);
 
         pc += 2;
     }
 
     // LD Vx, [I]
-    private void op_FX65() {
-        for (int i = 0; i <= opX(); i++)
-            V[i] = (byte) memory[index+i];
+    void op_FX65(int op) {
+        for (int i = 0; i <= argX(op); i++)
+            V[i] = (byte) memory.read(index+i);
 
         pc += 2;
     }
@@ -0,0 +1,346 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Static analysis of a loaded program
+ *
+ * Code is found by following every jump, call and skip from the entry point, so data mixed in with the code
+ * is never decoded. Reachable instructions are split into basic blocks and the subroutines they call form a
+ * call graph. Mnemonics are formatted once, when the program is analyzed.
+ *
+ * Targets of BNNN depend on V0 and cannot be followed, blocks ending in one are marked indirect.
+ * The analysis describes the program as loaded, code that rewrites itself may no longer match it.
+ */
+public class Disassembly {
+    private static final int ENTRY = 0x200;
+
+    /**
+     * Straight-line run of instructions with a single entry
+     */
+    public static final class BasicBlock {
+        @Getter
+        private final int start;
+
+        // Address after the last instruction
+        @Getter
+        private final int end;
+
+        // Addresses control can continue at, empty for a return
+        @Getter
+        private final int[] successors;
+
+        // Ends in a BNNN jump with an unknown target
+        @Getter
+        private final boolean indirect;
+
+        private BasicBlock(int start, int end, int[] successors, boolean indirect) {
+            this.start = start;
+            this.end = end;
+            this.successors = successors;
+            this.indirect = indirect;
+        }
+    }
+
+    // Memory words at analysis time, only meaningful where code is set
+    private final int[] opcodes = new int[4096];
+    private final String[] mnemonics = new String[4096];
+
+    // Addresses where a reachable instruction starts
+    private final BitSet code = new BitSet(4096);
+
+    // Addresses where a basic block starts
+    private final BitSet leaders = new BitSet(4096);
+    private final Set<Integer> subroutines = new TreeSet<>();
+
+    // Loaded program bytes, listed as data where they are not code
+    private final byte[] memory;
+    private final int programEnd;
+
+    /**
+     * Basic blocks by start address
+     */
+    @Getter
+    private final NavigableMap<Integer, BasicBlock> blocks = new TreeMap<>();
+
+    /**
+     * Subroutines called from each subroutine, the entry point counts as a subroutine
+     */
+    @Getter
+    private final Map<Integer, Set<Integer>> callGraph = new TreeMap<>();
+
+    private Disassembly(Memory memory, int programEnd) {
+        this.memory = memory.snapshot();
+        this.programEnd = Math.min(programEnd, Memory.SIZE);
+    }
+
+    /**
+     * Analyze a program starting at the entry point
+     *
+     * @param memory to analyze, copied
+     * @param programEnd address after the last program byte, bounds the listing
+     * @return analysis
+     */
+    public static Disassembly analyze(Memory memory, int programEnd) {
+        Disassembly disassembly = new Disassembly(memory, programEnd);
+        disassembly.trace();
+        disassembly.buildBlocks();
+        disassembly.buildCallGraph();
+        return disassembly;
+    }
+
+    /**
+     * Check if a reachable instruction starts at an address
+     *
+     * @param address to check
+     * @return true if code
+     */
+    public boolean isCode(int address) {
+        return address >= 0 && address < opcodes.length && code.get(address);
+    }
+
+    /**
+     * Mnemonic of the instruction at an address, formatted during analysis
+     *
+     * @param address of the instruction
+     * @return mnemonic or null if no reachable instruction starts there
+     */
+    public String mnemonic(int address) {
+        return isCode(address) ? mnemonics[address] : null;
+    }
+
+    /**
+     * Mnemonic for an opcode currently at an address, the cached one is used if the code has not been rewritten
+     *
+     * @param address of the instruction
+     * @param op opcode found there now
+     * @return mnemonic
+     */
+    public String describe(int address, int op) {
+        return isCode(address) && opcodes[address] == op ? mnemonics[address] : format(op);
+    }
+
+    /**
+     * Write an assembly listing of the program, code is labeled and disassembled, everything else is listed as data
+     *
+     * @param out to write to, not closed
+     * @throws IOException if writing fails
+     */
+    public void writeListing(Writer out) throws IOException {
+        String newline = System.lineSeparator();
+        for (int address = ENTRY; address < programEnd; ) {
+            if (callGraph.containsKey(address))
+                out.write((address == ENTRY ? "" : newline) + label(address) + ":" + newline);
+            else if (blocks.containsKey(address))
+                out.write(label(address) + ":" + newline);
+
+            if (code.get(address)) {
+                out.write(String.format("    %03X  %04X  %s%n", address, opcodes[address], mnemonics[address]));
+                address += 2;
+            } else {
+                out.write(String.format("    %03X  %02X    DB %02X%n", address, memory[address] & 0xFF, memory[address] & 0xFF));
+                address++;
+            }
+        }
+    }
+
+    /**
+     * Write an assembly listing to a file
+     *
+     * @param path of the listing, replaced if it exists
+     * @throws IOException if writing fails
+     */
+    public void writeListing(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writeListing(out);
+        }
+    }
+
+    private String label(int address) {
+        return String.format(callGraph.containsKey(address) ? "sub_%03X" : "L_%03X", address);
+    }
+
+    // Mark every instruction reachable from the entry point and every block leader
+    private void trace() {
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(ENTRY);
+        leaders.set(ENTRY);
+        subroutines.add(ENTRY);
+
+        while (!pending.isEmpty()) {
+            int address = pending.pop();
+            if (address < 0 || address >= memory.length - 1 || code.get(address))
+                continue;
+
+            int op = (memory[address] & 0xFF) << 8 | memory[address + 1] & 0xFF;
+            code.set(address);
+            opcodes[address] = op;
+            mnemonics[address] = format(op);
+
+            for (int successor : successors(address, op)) {
+                pending.push(successor);
+                if (transfersControl(Opcode.handler(op)))
+                    leaders.set(successor);
+            }
+
+            if (Opcode.handler(op) == Opcode.OP_2NNN) {
+                pending.push(op & 0xFFF);
+                leaders.set(op & 0xFFF);
+                subroutines.add(op & 0xFFF);
+            }
+        }
+    }
+
+    private void buildBlocks() {
+        for (int start = leaders.nextSetBit(0); start >= 0; start = leaders.nextSetBit(start + 1)) {
+            if (!code.get(start))
+                continue;
+
+            int address = start;
+            while (true) {
+                int op = opcodes[address];
+                int next = address + 2;
+                int handler = Opcode.handler(op);
+
+                // A block ends at a control transfer or where another block starts
+                if (transfersControl(handler) || !code.get(next) || leaders.get(next)) {
+                    int[] successors = successors(address, op);
+                    blocks.put(start, new BasicBlock(start, next, successors, handler == Opcode.OP_BNNN));
+                    break;
+                }
+                address = next;
+            }
+        }
+    }
+
+    // Walk the blocks of each subroutine, calls are recorded but not entered
+    private void buildCallGraph() {
+        for (int subroutine : subroutines) {
+            Set<Integer> callees = new TreeSet<>();
+            BitSet visited = new BitSet(4096);
+            Deque<Integer> pending = new ArrayDeque<>();
+            pending.push(subroutine);
+
+            while (!pending.isEmpty()) {
+                BasicBlock block = blocks.get(pending.pop());
+                if (block == null || visited.get(block.start))
+                    continue;
+                visited.set(block.start);
+
+                int last = opcodes[block.end - 2];
+                if (Opcode.handler(last) == Opcode.OP_2NNN)
+                    callees.add(last & 0xFFF);
+                for (int successor : block.successors)
+                    pending.push(successor);
+            }
+
+            callGraph.put(subroutine, Collections.unmodifiableSet(callees));
+        }
+    }
+
+    // Jumps, calls, returns and skips, unlike Opcode.terminates this leaves out instructions that only stop compiling
+    private static boolean transfersControl(int handler) {
+        switch (handler) {
+            case Opcode.OP_00EE:
+            case Opcode.OP_1NNN:
+            case Opcode.OP_2NNN:
+            case Opcode.OP_3XKK:
+            case Opcode.OP_4XKK:
+            case Opcode.OP_5XY0:
+            case Opcode.OP_9XY0:
+            case Opcode.OP_BNNN:
+            case Opcode.OP_EX9E:
+            case Opcode.OP_EXA1:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Addresses execution continues at after an instruction, not counting call targets
+    private static int[] successors(int address, int op) {
+        switch (Opcode.handler(op)) {
+            case Opcode.OP_00EE:
+            case Opcode.OP_BNNN:
+                return new int[0];
+            case Opcode.OP_1NNN:
+                return new int[]{op & 0xFFF};
+            case Opcode.OP_3XKK:
+            case Opcode.OP_4XKK:
+            case Opcode.OP_5XY0:
+            case Opcode.OP_9XY0:
+            case Opcode.OP_EX9E:
+            case Opcode.OP_EXA1:
+                return new int[]{address + 2, address + 4};
+            default:
+                return new int[]{address + 2};
+        }
+    }
+
+    /**
+     * Format a single opcode
+     *
+     * @param op opcode
+     * @return mnemonic
+     */
+    public static String format(int op) {
+        int x = op >> 8 & 0xF;
+        int y = op >> 4 & 0xF;
+        int n = op & 0xF;
+        int kk = op & 0xFF;
+        int nnn = op & 0xFFF;
+
+        switch (Opcode.handler(op)) {
+            case Opcode.OP_00E0: return "CLS";
+            case Opcode.OP_00EE: return "RET";
+            case Opcode.OP_1NNN: return String.format("JP %X", nnn);
+            case Opcode.OP_2NNN: return String.format("CALL %X", nnn);
+            case Opcode.OP_3XKK: return String.format("SE V%X, %X", x, kk);
+            case Opcode.OP_4XKK: return String.format("SNE V%X, %X", x, kk);
+            case Opcode.OP_5XY0: return String.format("SE V%X, V%X", x, y);
+            case Opcode.OP_6XKK: return String.format("LD V%X, %X", x, kk);
+            case Opcode.OP_7XKK: return String.format("ADD V%X, %X", x, kk);
+            case Opcode.OP_8XY0: return String.format("LD V%X, V%X", x, y);
+            case Opcode.OP_8XY1: return String.format("OR V%X, V%X", x, y);
+            case Opcode.OP_8XY2: return String.format("AND V%X, V%X", x, y);
+            case Opcode.OP_8XY3: return String.format("XOR V%X, V%X", x, y);
+            case Opcode.OP_8XY4: return String.format("ADD V%X, V%X", x, y);
+            case Opcode.OP_8XY5: return String.format("SUB V%X, V%X", x, y);
+            case Opcode.OP_8XY6: return String.format("SHR V%X", x);
+            case Opcode.OP_8XY7: return String.format("SUBN V%X, V%X", x, y);
+            case Opcode.OP_8XYE: return String.format("SHL V%X", x);
+            case Opcode.OP_9XY0: return String.format("SNE V%X, V%X", x, y);
+            case Opcode.OP_ANNN: return String.format("LD I, %X", nnn);
+            case Opcode.OP_BNNN: return String.format("JP V0, %X", nnn);
+            case Opcode.OP_CXKK: return String.format("RND V%X, %X", x, kk);
+            case Opcode.OP_DXYN: return String.format("DRW V%X, V%X, %X", x, y, n);
+            case Opcode.OP_EX9E: return String.format("SKP V%X", x);
+            case Opcode.OP_EXA1: return String.format("SKNP V%X", x);
+            case Opcode.OP_FX07: return String.format("LD V%X, DT", x);
+            case Opcode.OP_FX0A: return String.format("LD V%X, K", x);
+            case Opcode.OP_FX15: return String.format("LD DT, V%X", x);
+            case Opcode.OP_FX18: return String.format("LD ST, V%X", x);
+            case Opcode.OP_FX1E: return String.format("ADD I, V%X", x);
+            case Opcode.OP_FX29: return String.format("LD F, V%X", x);
+            case Opcode.OP_FX33: return String.format("LD B, V%X", x);
+            case Opcode.OP_FX55: return String.format("LD [I], V%X", x);
+            case Opcode.OP_FX65: return String.format("LD V%X, [I]", x);
+            default: return "NOP"; // No operation
+        }
+    }
+}
@@ -8,4 +8,28 @@ public interface Keypad {
      * @return pressed
      */
     boolean pressed(int key);
+
+    /**
+     * Keys held right now, read by the machine whenever no event is queued
+     *
+     * @return 16-bit state, bit n set if key n is pressed
+     */
+    default int state() {
+        int state = 0;
+        for (int key = 0; key < 16; key++)
+            if (pressed(key))
+                state |= 1 << key;
+        return state;
+    }
+
+    /**
+     * Take the oldest event the machine has not seen yet
+     * The machine applies one event per key instruction, so a press and release between two checks is not lost.
+     * Called by the emulation thread only
+     *
+     * @return event or null if none is queued, keypads without events always return null
+     */
+    default KeypadEvent poll() {
+        return null;
+    }
 }
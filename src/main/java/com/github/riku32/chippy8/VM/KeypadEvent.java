@@ -0,0 +1,30 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+/**
+ * A key press or release, as queued by a {@link Keypad}
+ */
+public final class KeypadEvent {
+    // Key that changed, 0-F
+    @Getter
+    private final int key;
+
+    @Getter
+    private final boolean pressed;
+
+    // Keys held after the event, bit n is key n
+    @Getter
+    private final int state;
+
+    // When the event happened, from System.nanoTime()
+    @Getter
+    private final long nanos;
+
+    public KeypadEvent(int key, boolean pressed, int state, long nanos) {
+        this.key = key;
+        this.pressed = pressed;
+        this.state = state;
+        this.nanos = nanos;
+    }
+}
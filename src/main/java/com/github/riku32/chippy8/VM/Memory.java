@@ -0,0 +1,140 @@
+package com.github.riku32.chippy8.VM;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 4 kilobytes of 8-bit memory
+ * Single byte and word accesses wrap around at the end of memory, bulk operations do not and are checked instead
+ */
+public final class Memory {
+    public static final int SIZE = 4096;
+    private static final int MASK = SIZE - 1;
+
+    private final byte[] data = new byte[SIZE];
+
+    /**
+     * Read a byte
+     *
+     * @param address wrapped into memory
+     * @return unsigned value
+     */
+    public int read(int address) {
+        return data[address & MASK] & 0xFF;
+    }
+
+    /**
+     * Read a big endian 16-bit word, the second byte wraps to the start of memory
+     *
+     * @param address of the high byte, wrapped into memory
+     * @return unsigned value
+     */
+    public int readWord(int address) {
+        return (data[address & MASK] & 0xFF) << 8 | data[(address + 1) & MASK] & 0xFF;
+    }
+
+    /**
+     * Write a byte
+     *
+     * @param address wrapped into memory
+     * @param value only the low 8 bits are stored
+     */
+    public void write(int address, int value) {
+        data[address & MASK] = (byte) value;
+    }
+
+    /**
+     * Copy bytes into memory
+     *
+     * @param address to copy to
+     * @param source bytes to copy
+     * @param offset in source
+     * @param length bytes to copy
+     */
+    public void load(int address, byte[] source, int offset, int length) {
+        checkRange(address, length);
+        System.arraycopy(source, offset, data, address, length);
+    }
+
+    /**
+     * Copy all of a byte array into memory
+     *
+     * @param address to copy to
+     * @param source bytes to copy
+     */
+    public void load(int address, byte[] source) {
+        load(address, source, 0, source.length);
+    }
+
+    /**
+     * Copy bytes out of memory
+     *
+     * @param address to copy from
+     * @param target to copy into
+     * @param offset in target
+     * @param length bytes to copy
+     */
+    public void copyTo(int address, byte[] target, int offset, int length) {
+        checkRange(address, length);
+        System.arraycopy(data, address, target, offset, length);
+    }
+
+    /**
+     * Write all of memory at the buffer position
+     *
+     * @param buffer with at least {@link #SIZE} bytes remaining
+     */
+    public void saveTo(ByteBuffer buffer) {
+        buffer.put(data);
+    }
+
+    /**
+     * Replace all of memory from the buffer position
+     *
+     * @param buffer with at least {@link #SIZE} bytes remaining
+     */
+    public void loadFrom(ByteBuffer buffer) {
+        buffer.get(data);
+    }
+
+    /**
+     * Copy of all of memory
+     *
+     * @return bytes
+     */
+    public byte[] snapshot() {
+        return data.clone();
+    }
+
+    /**
+     * Zero all of memory
+     */
+    public void clear() {
+        Arrays.fill(data, (byte) 0);
+    }
+
+    /**
+     * First address where two memories differ
+     *
+     * @param other memory to compare with
+     * @return address or -1 if the contents are equal
+     */
+    public int mismatch(Memory other) {
+        return Arrays.mismatch(data, other.data);
+    }
+
+    /**
+     * First address where memory differs from a snapshot
+     *
+     * @param snapshot as returned by {@link #snapshot()}
+     * @return address or -1 if the contents are equal
+     */
+    public int mismatch(byte[] snapshot) {
+        return Arrays.mismatch(data, snapshot);
+    }
+
+    private static void checkRange(int address, int length) {
+        if (address < 0 || length < 0 || address + length > SIZE)
+            throw new IndexOutOfBoundsException(String.format("%d bytes at %04X do not fit in memory", length, address));
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.riku32.chippy8.VM;
+
+/**
+ * Handler identifiers used by the predecoded instruction cache
+ * A decoded entry packs the handler in the upper 16 bits and the raw opcode in the lower 16 bits,
+ * an entry of 0 means the address has not been decoded yet
+ */
+final class Opcode {
+    static final int NOP = 1;
+    static final int OP_00E0 = 2;
+    static final int OP_00EE = 3;
+    static final int OP_1NNN = 4;
+    static final int OP_2NNN = 5;
+    static final int OP_3XKK = 6;
+    static final int OP_4XKK = 7;
+    static final int OP_5XY0 = 8;
+    static final int OP_6XKK = 9;
+    static final int OP_7XKK = 10;
+    static final int OP_8XY0 = 11;
+    static final int OP_8XY1 = 12;
+    static final int OP_8XY2 = 13;
+    static final int OP_8XY3 = 14;
+    static final int OP_8XY4 = 15;
+    static final int OP_8XY5 = 16;
+    static final int OP_8XY6 = 17;
+    static final int OP_8XY7 = 18;
+    static final int OP_8XYE = 19;
+    static final int OP_9XY0 = 20;
+    static final int OP_ANNN = 21;
+    static final int OP_BNNN = 22;
+    static final int OP_CXKK = 23;
+    static final int OP_DXYN = 24;
+    static final int OP_EX9E = 25;
+    static final int OP_EXA1 = 26;
+    static final int OP_FX07 = 27;
+    static final int OP_FX0A = 28;
+    static final int OP_FX15 = 29;
+    static final int OP_FX18 = 30;
+    static final int OP_FX1E = 31;
+    static final int OP_FX29 = 32;
+    static final int OP_FX33 = 33;
+    static final int OP_FX55 = 34;
+    static final int OP_FX65 = 35;
+
+    // Chip8 handler method for each identifier, indexed by identifier
+    static final String[] METHODS = {
+            null, "op_NOP", "op_00E0", "op_00EE", "op_1NNN", "op_2NNN", "op_3XKK", "op_4XKK", "op_5XY0",
+            "op_6XKK", "op_7XKK", "op_8XY0", "op_8XY1", "op_8XY2", "op_8XY3", "op_8XY4", "op_8XY5",
+            "op_8XY6", "op_8XY7", "op_8XYE", "op_9XY0", "op_ANNN", "op_BNNN", "op_CXKK", "op_DXYN",
+            "op_EX9E", "op_EXA1", "op_FX07", "op_FX0A", "op_FX15", "op_FX18", "op_FX1E", "op_FX29",
+            "op_FX33", "op_FX55", "op_FX65"
+    };
+
+    private Opcode() {}
+
+    /**
+     * Check if a handler ends a basic block
+     * Jumps, calls, returns and skips transfer control, FX0A may not advance and FX33/FX55 may overwrite code
+     *
+     * @param handler handler identifier
+     * @return handler ends a block
+     */
+    static boolean terminates(int handler) {
+        switch (handler) {
+            case OP_00EE:
+            case OP_1NNN:
+            case OP_2NNN:
+            case OP_3XKK:
+            case OP_4XKK:
+            case OP_5XY0:
+            case OP_9XY0:
+            case OP_BNNN:
+            case OP_EX9E:
+            case OP_EXA1:
+            case OP_FX0A:
+            case OP_FX33:
+            case OP_FX55:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if a handler takes the opcode as an argument
+     *
+     * @param handler handler identifier
+     * @return handler has operands
+     */
+    static boolean hasOperands(int handler) {
+        return handler != NOP && handler != OP_00E0 && handler != OP_00EE;
+    }
+
+    /**
+     * Build a decode cache entry for an opcode
+     *
+     * @param op raw 16-bit opcode
+     * @return packed handler and opcode
+     */
+    static int entry(int op) {
+        return handler(op & 0xFFFF) << 16 | (op & 0xFFFF);
+    }
+
+    /**
+     * Resolve the handler for an opcode, unknown opcodes resolve to NOP
+     *
+     * @param op raw 16-bit opcode
+     * @return handler identifier
+     */
+    static int handler(int op) {
+        switch (op & 0xF000) {
+            case 0x0000:
+                switch (op) {
+                    case 0x00E0: return OP_00E0;
+                    case 0x00EE: return OP_00EE;
+                }
+                return NOP;
+            case 0x1000: return OP_1NNN;
+            case 0x2000: return OP_2NNN;
+            case 0x3000: return OP_3XKK;
+            case 0x4000: return OP_4XKK;
+            case 0x5000: return OP_5XY0;
+            case 0x6000: return OP_6XKK;
+            case 0x7000: return OP_7XKK;
+            case 0x8000:
+                switch (op & 0x000F) {
+                    case 0x0000: return OP_8XY0;
+                    case 0x0001: return OP_8XY1;
+                    case 0x0002: return OP_8XY2;
+                    case 0x0003: return OP_8XY3;
+                    case 0x0004: return OP_8XY4;
+                    case 0x0005: return OP_8XY5;
+                    case 0x0006: return OP_8XY6;
+                    case 0x0007: return OP_8XY7;
+                    case 0x000E: return OP_8XYE;
+                }
+                return NOP;
+            case 0x9000: return OP_9XY0;
+            case 0xA000: return OP_ANNN;
+            case 0xB000: return OP_BNNN;
+            case 0xC000: return OP_CXKK;
+            case 0xD000: return OP_DXYN;
+            case 0xE000:
+                switch (op & 0x00FF) {
+                    case 0x009E: return OP_EX9E;
+                    case 0x00A1: return OP_EXA1;
+                }
+                return NOP;
+            case 0xF000:
+                switch (op & 0x00FF) {
+                    case 0x0007: return OP_FX07;
+                    case 0x000A: return OP_FX0A;
+                    case 0x0015: return OP_FX15;
+                    case 0x0018: return OP_FX18;
+                    case 0x001E: return OP_FX1E;
+                    case 0x0029: return OP_FX29;
+                    case 0x0033: return OP_FX33;
+                    case 0x0055: return OP_FX55;
+                    case 0x0065: return OP_FX65;
+                }
+                return NOP;
+            default:
+                return NOP;
+        }
+    }
+}
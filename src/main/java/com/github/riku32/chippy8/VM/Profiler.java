@@ -0,0 +1,119 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Counts how often the instruction at each address runs
+ *
+ * Attach with {@link Chip8#setProfiler(Profiler)}, the machine does no counting while none is attached.
+ * Hot addresses are where a ROM spends its cycles, usually the loop it waits for the delay timer or a key in.
+ * Only used by the emulation thread.
+ */
+public class Profiler {
+    private final int[] hits = new int[Memory.SIZE];
+    private final BitSet coverage = new BitSet(Memory.SIZE);
+
+    /**
+     * Instructions counted
+     */
+    @Getter
+    private long total;
+
+    /**
+     * Highest count of any address
+     */
+    @Getter
+    private int maxHits;
+
+    // Counts stop at Integer.MAX_VALUE, which fast forwarded or headless runs can reach
+    void hit(int address) {
+        address &= Memory.SIZE - 1;
+        int count = hits[address];
+        if (count == 0)
+            coverage.set(address);
+        if (count != Integer.MAX_VALUE)
+            hits[address] = ++count;
+        if (count > maxHits)
+            maxHits = count;
+        total++;
+    }
+
+    /**
+     * Times the instruction at an address ran
+     *
+     * @param address in memory
+     * @return count
+     */
+    public int hits(int address) {
+        return address >= 0 && address < hits.length ? hits[address] : 0;
+    }
+
+    /**
+     * Addresses an instruction ran at
+     *
+     * @return copy of the coverage bitmap
+     */
+    public BitSet getCoverage() {
+        return (BitSet) coverage.clone();
+    }
+
+    /**
+     * Most executed addresses
+     *
+     * @param count addresses to return at most
+     * @return addresses, hottest first
+     */
+    public int[] hotspots(int count) {
+        return coverage.stream().boxed()
+                .sorted((a, b) -> Integer.compare(hits[b], hits[a]))
+                .limit(count)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Forget every count
+     */
+    public void reset() {
+        for (int address = coverage.nextSetBit(0); address >= 0; address = coverage.nextSetBit(address + 1))
+            hits[address] = 0;
+        coverage.clear();
+        total = 0;
+        maxHits = 0;
+    }
+
+    /**
+     * Write a listing of every address that ran with its count and share of all instructions, after a summary of
+     * coverage and the hottest addresses
+     *
+     * @param out to write to, not closed
+     * @param chip8 machine the profile was taken on, its current memory is disassembled
+     * @throws IOException if writing fails
+     */
+    public void writeListing(Writer out, Chip8 chip8) throws IOException {
+        Disassembly disassembly = chip8.getDisassembly();
+        long reachable = IntStream.range(0, Memory.SIZE).filter(disassembly::isCode).count();
+        long covered = coverage.stream().filter(disassembly::isCode).count();
+
+        out.write(String.format("; %d instructions, %d addresses ran%n", total, coverage.cardinality()));
+        out.write(String.format("; covered %d of %d reachable instructions%n", covered, reachable));
+        out.write(String.format(";%n; hotspots%n"));
+        for (int address : hotspots(10))
+            out.write(String.format(";   %03X  %5.1f%%  %s%n", address, percent(address),
+                    chip8.disassembleOpcode((short) address)));
+        out.write(String.format("%n"));
+
+        for (int address = coverage.nextSetBit(0); address >= 0; address = coverage.nextSetBit(address + 1))
+            out.write(String.format("%10d %5.1f%%  %03X  %04X  %s%n", hits[address], percent(address), address,
+                    chip8.opcodeAt(address), chip8.disassembleOpcode((short) address)));
+    }
+
+    private double percent(int address) {
+        return total == 0 ? 0 : hits[address] * 100.0 / total;
+    }
+}
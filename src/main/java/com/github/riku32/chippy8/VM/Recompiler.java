@@ -0,0 +1,406 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional execution engine that compiles the code reachable from an address into a JVM class
+ * Starting at a hot address, every instruction reachable through straight-line code, jumps, calls and skips is
+ * compiled into one method whose basic blocks branch to each other, so a loop runs inside the method without
+ * coming back to the dispatch loop. Returns, computed jumps and memory stores leave the method.
+ * Each instruction calls the interpreter handler with a constant opcode, which HotSpot inlines and constant folds.
+ * Compiled classes are shared between all instances running the same code at the same addresses.
+ * Anything not worth compiling falls back to {@link Chip8#cycle()}.
+ */
+public class Recompiler {
+    // Longest basic block in instructions, bounds the budget check counter
+    private static final int MAX_BLOCK_LENGTH = 64;
+
+    // Most instructions compiled into one class, keeps the method well below the size HotSpot still compiles
+    private static final int MAX_REGION = 128;
+
+    // Times an address has to be entered before it is compiled
+    private static final int COMPILE_THRESHOLD = 16;
+
+    // Generated classes are never unloaded, stop compiling past this many distinct blocks
+    private static final int MAX_CLASSES = 16384;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    // Compiled blocks keyed by lockstep, their start, addresses and opcodes
+    private static final Map<String, Block> classCache = new ConcurrentHashMap<>();
+
+    private final Chip8 chip8;
+
+    // Compiled block entered at each basic block start, with the address of every instruction it compiled
+    private final Block[] blocks = new Block[4096];
+    private final int[][] blockAddresses = new int[4096][];
+
+    // Number of compiled instructions covering each byte, writes to uncovered bytes skip the invalidation scan
+    private final short[] coverage = new short[4096];
+
+    // Times each address was entered, and whether the next instruction is entered rather than stepped onto
+    private final int[] hits = new int[4096];
+    private boolean entry = true;
+
+    // Compiler scratch, members and basic block starts of the block being compiled
+    private final boolean[] member = new boolean[4096];
+    private final boolean[] leader = new boolean[4096];
+
+    /**
+     * Lockstep mode replays everything on an interpreter and compares the machine state after each block
+     */
+    @Getter
+    private boolean lockstep;
+    private Chip8 shadow;
+    private boolean resync;
+
+    public Recompiler(Chip8 chip8) {
+        this.chip8 = chip8;
+        chip8.attach(this);
+    }
+
+    /**
+     * Enable or disable lockstep checking against the interpreter
+     *
+     * @param lockstep enabled
+     */
+    public void setLockstep(boolean lockstep) {
+        // Lockstep compiles key reads differently
+        invalidateAll();
+
+        this.lockstep = lockstep;
+        this.shadow = null;
+        this.resync = lockstep;
+    }
+
+    /**
+     * Execute a number of cycles, compiled basic blocks are only entered when they fit in the remaining cycles
+     *
+     * @param cycles to execute
+     * @return cycles executed
+     */
+    public int run(int cycles) {
+        int executed = 0;
+
+        while (executed < cycles) {
+            int pc = chip8.getPc();
+
+            // Profiling, breakpoints and traces need every instruction to go through the interpreter
+            Block block = null;
+            if (pc >= 0 && pc < blocks.length && !chip8.interpreted()) {
+                block = blocks[pc];
+                if (block == null && entry && ++hits[pc] >= COMPILE_THRESHOLD)
+                    block = compile(pc);
+            }
+
+            if (lockstep)
+                prepareShadow();
+
+            int length = block == null ? 0 : block.run(chip8, cycles - executed);
+            if (length == 0) {
+                // Straight-line code is only entered at its start, an address the interpreter stepped onto from the
+                // previous instruction would compile a copy of the block it is in
+                entry = pc >= 0 && pc < blocks.length && Opcode.terminates(Opcode.handler(chip8.opcodeAt(pc)));
+                chip8.cycle();
+                length = 1;
+            } else {
+                entry = true;
+            }
+
+            if (lockstep)
+                verify(pc, length);
+
+            executed += length;
+        }
+
+        return executed;
+    }
+
+    /**
+     * Drop every compiled block covering an address
+     *
+     * @param address that was written
+     */
+    void invalidate(int address) {
+        if (address < 0 || address >= coverage.length || coverage[address] == 0)
+            return;
+
+        for (int start = 0; start < blocks.length; start++) {
+            if (blocks[start] == null)
+                continue;
+            for (int instruction : blockAddresses[start]) {
+                if (instruction == address || instruction + 1 == address) {
+                    remove(start);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every compiled block, used when a ROM or state replaces memory
+     */
+    void invalidateAll() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(blockAddresses, null);
+        Arrays.fill(coverage, (short) 0);
+        Arrays.fill(hits, 0);
+        resync = lockstep;
+    }
+
+    // Drop a compiled block from every start entering it
+    private void remove(int start) {
+        int[] addresses = blockAddresses[start];
+        for (int address : addresses) {
+            coverage[address]--;
+            coverage[address + 1]--;
+        }
+
+        for (int entry = 0; entry < blocks.length; entry++) {
+            if (blockAddresses[entry] == addresses) {
+                blocks[entry] = null;
+                blockAddresses[entry] = null;
+                hits[entry] = 0;
+            }
+        }
+    }
+
+    // Instructions a handler continues at when they are known from the opcode
+    private static int[] successors(int address, int op, int handler) {
+        switch (handler) {
+            case Opcode.OP_1NNN:
+            case Opcode.OP_2NNN:
+                return new int[]{op & 0x0FFF};
+            case Opcode.OP_3XKK:
+            case Opcode.OP_4XKK:
+            case Opcode.OP_5XY0:
+            case Opcode.OP_9XY0:
+            case Opcode.OP_EX9E:
+            case Opcode.OP_EXA1:
+                return new int[]{address + 2, address + 4};
+            // Waits by running again until a key is held
+            case Opcode.OP_FX0A:
+                return new int[]{address, address + 2};
+            case Opcode.OP_00EE:
+            case Opcode.OP_BNNN:
+                return new int[0];
+            default:
+                return new int[]{address + 2};
+        }
+    }
+
+    // Handlers that leave compiled code, their successors are still compiled and enter the same block again
+    private boolean leaves(int handler) {
+        switch (handler) {
+            // In lockstep key reads leave, the shadow only replays the keys of the last one
+            case Opcode.OP_EX9E:
+            case Opcode.OP_EXA1:
+            case Opcode.OP_FX0A:
+                return lockstep;
+            // Stores may overwrite compiled code
+            case Opcode.OP_00EE:
+            case Opcode.OP_BNNN:
+            case Opcode.OP_FX33:
+            case Opcode.OP_FX55:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Block compile(int start) {
+        // Find everything reachable from the start, addresses left pending once full leave the compiled code
+        int count = 0;
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(start);
+        leader[start] = true;
+        while (!pending.isEmpty() && count < MAX_REGION) {
+            int address = pending.pop();
+            if (address > Memory.SIZE - 2 || member[address])
+                continue;
+            member[address] = true;
+            count++;
+
+            int op = chip8.opcodeAt(address);
+            int handler = Opcode.handler(op);
+            for (int successor : successors(address, op, handler)) {
+                if (successor > Memory.SIZE - 2)
+                    continue;
+                pending.push(successor);
+                if (Opcode.terminates(handler))
+                    leader[successor] = true;
+            }
+        }
+
+        if (count == 0) {
+            leader[start] = false;
+            return null;
+        }
+
+        int[] addresses = new int[count];
+        StringBuilder key = new StringBuilder().append(lockstep ? 'L' : 'C').append((char) start);
+        for (int address = 0, i = 0; address < member.length; address++) {
+            if (member[address]) {
+                addresses[i++] = address;
+                key.append((char) address).append((char) chip8.opcodeAt(address));
+            }
+        }
+
+        // Split into basic blocks, the method is entered at the start of any of them
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        int blockCount = 0;
+        for (int first : addresses) {
+            if (!leader[first])
+                continue;
+
+            int length = 1;
+            int address = first;
+            while (!Opcode.terminates(Opcode.handler(chip8.opcodeAt(address)))
+                    && address + 2 < member.length && member[address + 2] && !leader[address + 2]) {
+                if (length == MAX_BLOCK_LENGTH) {
+                    leader[address + 2] = true;
+                    break;
+                }
+                address += 2;
+                length++;
+            }
+
+            starts[blockCount] = first;
+            lengths[blockCount++] = length;
+        }
+        starts = Arrays.copyOf(starts, blockCount);
+
+        Block block = classCache.get(key.toString());
+        if (block == null && classCache.size() < MAX_CLASSES) {
+            block = define(starts, lengths);
+            Block existing = classCache.putIfAbsent(key.toString(), block);
+            if (existing != null)
+                block = existing;
+        }
+
+        Arrays.fill(member, false);
+        Arrays.fill(leader, false);
+        if (block == null) {
+            hits[start] = 0;
+            return null;
+        }
+
+        // Every basic block start not covered yet enters the new block
+        for (int first : starts) {
+            if (blocks[first] == null) {
+                blocks[first] = block;
+                blockAddresses[first] = addresses;
+            }
+        }
+        for (int address : addresses) {
+            coverage[address]++;
+            coverage[address + 1]++;
+        }
+
+        return block;
+    }
+
+    // Emit the basic blocks, member still tells which addresses were compiled
+    private Block define(int[] starts, int[] lengths) {
+        try {
+            BlockClassWriter writer = new BlockClassWriter(
+                    "com/github/riku32/chippy8/VM/CompiledBlock" + classCounter.getAndIncrement());
+            writer.enter(starts);
+
+            for (int block = 0; block < starts.length; block++) {
+                int first = starts[block];
+                int length = lengths[block];
+
+                writer.label(first);
+                writer.budget(length);
+                for (int i = 0; i < length; i++) {
+                    int op = chip8.opcodeAt(first + i * 2);
+                    int handler = Opcode.handler(op);
+                    if (Opcode.hasOperands(handler))
+                        writer.call(Opcode.METHODS[handler], op);
+                    else
+                        writer.call(Opcode.METHODS[handler]);
+                }
+
+                int last = first + (length - 1) * 2;
+                int op = chip8.opcodeAt(last);
+                int handler = Opcode.handler(op);
+                int[] next = successors(last, op, handler);
+                if (leaves(handler))
+                    writer.jump(BlockClassWriter.EXIT);
+                else if (next.length == 2)
+                    writer.branch(next[1], label(next[1]), label(next[0]));
+                else
+                    writer.jump(label(next[0]));
+            }
+
+            Class<?> type = lookup.defineClass(writer.toByteArray());
+            return (Block) type.getDeclaredConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not define compiled block", e);
+        }
+    }
+
+    // Label of an instruction, compiled instructions a branch reaches are always basic block starts
+    private int label(int address) {
+        return address < member.length && member[address] ? address : BlockClassWriter.EXIT;
+    }
+
+    // Bring the shadow interpreter in line with the machine before the next step
+    private void prepareShadow() {
+        if (resync || shadow == null) {
+            // Blocks end at key instructions, so the shadow needs only the keys of the last one
+            shadow = new Chip8(key -> (chip8.getLastKeys() >> key & 1) != 0);
+            try {
+                shadow.loadState(chip8.saveState());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not copy state for lockstep", e);
+            }
+
+            // The RNG state is part of the copied state, RND gives both machines the same values
+            resync = false;
+        }
+
+        // Timers are ticked outside of the instruction stream
+        shadow.setDelayTimer(chip8.getDelayTimer());
+        shadow.setSoundTimer(chip8.getSoundTimer());
+    }
+
+    private void verify(int start, int length) {
+        for (int i = 0; i < length; i++)
+            shadow.cycle();
+
+        String field = null;
+        if (chip8.getPc() != shadow.getPc())
+            field = "PC";
+        else if (chip8.getIndex() != shadow.getIndex())
+            field = "I";
+        else if (chip8.getSp() != shadow.getSp())
+            field = "SP";
+        else if (chip8.getDelayTimer() != shadow.getDelayTimer() || chip8.getSoundTimer() != shadow.getSoundTimer())
+            field = "timers";
+        else if (!Arrays.equals(chip8.getV(), shadow.getV()))
+            field = "registers";
+        else if (!Arrays.equals(chip8.getStack(), shadow.getStack()))
+            field = "stack";
+        else if (chip8.getMemory().mismatch(shadow.getMemory()) >= 0)
+            field = "memory";
+        else if (!Arrays.equals(chip8.getFrameBuffer(), shadow.getFrameBuffer()))
+            field = "VRAM";
+
+        if (field != null)
+            throw new IllegalStateException(String.format(
+                    "Block at %04X (%d instructions) diverged from the interpreter in %s", start, length, field));
+    }
+}
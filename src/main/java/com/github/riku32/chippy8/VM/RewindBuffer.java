@@ -0,0 +1,266 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bounded history of machine states for stepping back frame by frame
+ *
+ * States are stored in a fixed size arena. Every {@code keyframeInterval} frames a keyframe is stored,
+ * the frames in between are stored as the XOR against their keyframe. Both are run-length encoded,
+ * consecutive frames differ in a few bytes so most entries are tiny. When the arena is full the
+ * oldest keyframe is dropped together with every delta that depends on it.
+ *
+ * The budget covers everything the buffer allocates, the arena gets what the entry index and scratch states leave.
+ */
+public class RewindBuffer {
+    // Upper bound of an encoded state, every run header after the first is paid for by at least 4 unchanged bytes
+    private static final int MAX_ENCODED = Chip8.STATE_SIZE + 4;
+
+    // Index bytes per entry, its offset, length and keyframe
+    private static final int ENTRY_BYTES = 12;
+
+    // Smallest delta a running machine realistically leaves, a changed PC and timers with their run headers
+    // Sizes the index, history of even smaller frames is bounded by the entry count instead of the arena
+    private static final int MIN_ENTRY = 20;
+
+    // Scratch states, the key state and the encode buffer
+    private static final int FIXED_BYTES = Chip8.STATE_SIZE * 3 + MAX_ENCODED;
+
+    private final byte[] arena;
+    private int writePos;
+
+    private final int keyframeInterval;
+
+    // Entry ring indexed by sequence number modulo capacity, head is always a keyframe
+    private final int[] entryOffset;
+    private final int[] entryLength;
+    private final int[] entryKey;
+    private int head, tail;
+
+    // Sequence number of the newest keyframe and its decoded state
+    private int key = -1;
+    private final byte[] keyState = new byte[Chip8.STATE_SIZE];
+
+    private final byte[] zero = new byte[Chip8.STATE_SIZE];
+    private final byte[] state = new byte[Chip8.STATE_SIZE];
+    private final byte[] encoded = new byte[MAX_ENCODED];
+    private final ByteBuffer stateBuffer = ByteBuffer.wrap(state);
+
+    // Bytes of the arena held by live entries
+    @Getter
+    private long memoryUsage;
+
+    // Bytes allocated for the arena, the index and scratch states, never more than the budget
+    @Getter
+    private final long allocated;
+
+    /**
+     * @param budget bytes the buffer may allocate in total, the arena must hold at least a few full states
+     * @param keyframeInterval frames between keyframes
+     */
+    public RewindBuffer(int budget, int keyframeInterval) {
+        // Every entry pays for its index and at least MIN_ENTRY bytes of arena
+        int capacity = (budget - FIXED_BYTES) / (ENTRY_BYTES + MIN_ENTRY);
+        int arenaSize = budget - FIXED_BYTES - capacity * ENTRY_BYTES;
+        if (capacity <= 0 || arenaSize < MAX_ENCODED * 4)
+            throw new IllegalArgumentException("Rewind budget must be at least "
+                    + (FIXED_BYTES + MAX_ENCODED * 4 * (ENTRY_BYTES + MIN_ENTRY) / MIN_ENTRY + 1) + " bytes");
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException("Keyframe interval must be positive");
+
+        this.arena = new byte[arenaSize];
+        this.keyframeInterval = keyframeInterval;
+
+        this.entryOffset = new int[capacity];
+        this.entryLength = new int[capacity];
+        this.entryKey = new int[capacity];
+        this.allocated = (long) FIXED_BYTES + arenaSize + (long) capacity * ENTRY_BYTES;
+    }
+
+    /**
+     * @param budget bytes the buffer may allocate in total
+     */
+    public RewindBuffer(int budget) {
+        this(budget, 60);
+    }
+
+    /**
+     * Number of frames held
+     *
+     * @return frames
+     */
+    public int size() {
+        return tail - head;
+    }
+
+    /**
+     * Drop all history
+     */
+    public void clear() {
+        head = tail = writePos = 0;
+        key = -1;
+        memoryUsage = 0;
+    }
+
+    /**
+     * Record the current state as the newest frame
+     *
+     * @param chip8 machine to capture
+     */
+    public void capture(Chip8 chip8) {
+        stateBuffer.clear();
+        chip8.saveState(stateBuffer);
+
+        boolean keyframe = key < 0 || tail - key >= keyframeInterval;
+        int length = encode(state, keyframe ? zero : keyState, encoded);
+
+        // The entry has to fit in one piece, wrap to the start of the arena if it does not
+        // Entries past the write position are then older than anything at the start and go first
+        int wrapFrom = arena.length;
+        if (writePos + length > arena.length) {
+            wrapFrom = writePos;
+            writePos = 0;
+        }
+
+        while (size() > 0 && (size() == entryOffset.length
+                || entryOffset[slot(head)] >= wrapFrom
+                || overlaps(head, writePos, length))) {
+            if (!keyframe && entryKey[slot(head)] == key) {
+                // The keyframe this delta depends on is being evicted, start over from a keyframe
+                clear();
+                keyframe = true;
+                length = encode(state, zero, encoded);
+            } else {
+                evictOldest();
+            }
+        }
+
+        int slot = slot(tail);
+        System.arraycopy(encoded, 0, arena, writePos, length);
+        entryOffset[slot] = writePos;
+        entryLength[slot] = length;
+
+        if (keyframe) {
+            key = tail;
+            System.arraycopy(state, 0, keyState, 0, state.length);
+        }
+        entryKey[slot] = key;
+
+        tail++;
+        writePos += length;
+        memoryUsage += length;
+    }
+
+    /**
+     * Step back one frame, the newest frame is dropped and the one before it is loaded
+     *
+     * @param chip8 machine to restore into
+     * @return false if there is no earlier frame
+     */
+    public boolean rewind(Chip8 chip8) {
+        if (size() < 2)
+            return false;
+
+        int dropped = --tail;
+        memoryUsage -= entryLength[slot(dropped)];
+        writePos = entryOffset[slot(dropped)];
+
+        // Dropping a keyframe makes the keyframe of the new newest entry current again
+        int newest = tail - 1;
+        if (dropped == key) {
+            key = entryKey[slot(newest)];
+            decode(key, zero, keyState);
+        }
+
+        decode(newest, newest == key ? zero : keyState, state);
+        try {
+            chip8.loadState(ByteBuffer.wrap(state));
+        } catch (IOException e) {
+            throw new IllegalStateException("Rewind buffer is corrupt", e);
+        }
+
+        return true;
+    }
+
+    private int slot(int sequence) {
+        return sequence % entryOffset.length;
+    }
+
+    private boolean overlaps(int sequence, int offset, int length) {
+        int start = entryOffset[slot(sequence)];
+        int end = start + entryLength[slot(sequence)];
+        return start < offset + length && offset < end;
+    }
+
+    // Evict the oldest keyframe and all deltas against it
+    private void evictOldest() {
+        int oldestKey = entryKey[slot(head)];
+        while (size() > 0 && entryKey[slot(head)] == oldestKey) {
+            memoryUsage -= entryLength[slot(head)];
+            head++;
+        }
+    }
+
+    private void decode(int sequence, byte[] base, byte[] out) {
+        int offset = entryOffset[slot(sequence)];
+        int end = offset + entryLength[slot(sequence)];
+
+        System.arraycopy(base, 0, out, 0, out.length);
+        int position = 0;
+        while (offset < end) {
+            // Run of unchanged bytes followed by a run of XORed bytes
+            int zeros = arena[offset++] & 0xFF | (arena[offset++] & 0xFF) << 8;
+            int literals = arena[offset++] & 0xFF | (arena[offset++] & 0xFF) << 8;
+            position += zeros;
+            for (int i = 0; i < literals; i++)
+                out[position++] ^= arena[offset++];
+        }
+    }
+
+    // Run-length encode the XOR of a state against its base, returns the encoded length
+    private static int encode(byte[] state, byte[] base, byte[] out) {
+        int length = 0;
+        int position = 0;
+        while (position < state.length) {
+            int start = position;
+            while (position < state.length && state[position] == base[position])
+                position++;
+            int zeros = position - start;
+
+            // Literals end at the first run of 4 unchanged bytes, shorter runs cost more as headers
+            int literalStart = position;
+            int same = 0;
+            while (position < state.length && same < 4) {
+                same = state[position] == base[position] ? same + 1 : 0;
+                position++;
+            }
+            if (same == 4)
+                position -= 4;
+            else if (position == state.length)
+                position -= same;
+            int literals = position - literalStart;
+
+            if (literals == 0 && position == state.length)
+                break;
+
+            out[length++] = (byte) zeros;
+            out[length++] = (byte) (zeros >> 8);
+            out[length++] = (byte) literals;
+            out[length++] = (byte) (literals >> 8);
+            for (int i = literalStart; i < position; i++)
+                out[length++] = (byte) (state[i] ^ base[i]);
+        }
+
+        // An unchanged frame still needs an entry
+        if (length == 0) {
+            Arrays.fill(out, 0, 4, (byte) 0);
+            length = 4;
+        }
+
+        return length;
+    }
+}
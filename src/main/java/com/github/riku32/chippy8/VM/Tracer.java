@@ -0,0 +1,296 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records every instruction the machine runs to a compressed file
+ *
+ * Instructions are packed into preallocated segments on the emulation thread, full segments are handed to a writer
+ * thread which compresses them to disk. The emulation thread never waits on the writer, when no empty segment is
+ * left the entries of the current one are dropped and the gap shows in the trace.
+ *
+ * Each entry is one long
+ * <pre>
+ * bits 0-11   address          bits 12-27  opcode          bits 28-43  I after the instruction
+ * bits 44-48  lowest register the instruction changed, 16 for none          bits 49-56  its new value
+ * </pre>
+ * File layout, gzip compressed and big endian
+ * <pre>
+ * 0    magic "C8TR"       4    version          6    reserved
+ * then per segment   index of its first instruction (64-bit)   entries (32-bit)   entries (64-bit each)
+ * </pre>
+ */
+public class Tracer implements Closeable {
+    private static final int MAGIC = 0x43385452;
+    private static final short VERSION = 1;
+
+    // Entries per segment
+    public static final int SEGMENT_SIZE = 1 << 16;
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    private static final int NO_REGISTER = 16;
+
+    private static final class Segment {
+        private final long[] entries = new long[SEGMENT_SIZE];
+        private long first;
+        private int count;
+    }
+
+    // Tells the writer to finish
+    private static final Segment END = new Segment();
+
+    private final Chip8 chip8;
+    private final DataOutputStream out;
+    private final BlockingQueue<Segment> free;
+    private final BlockingQueue<Segment> full;
+    private final Thread writer;
+
+    // Only touched by the emulation thread
+    private Segment segment;
+    private int position;
+    private boolean finished;
+
+    // Instruction waiting for the state after it, its entry is written when the next one starts
+    private boolean pending;
+    private int pendingPc, pendingOp;
+    private final byte[] registers = new byte[16];
+
+    /**
+     * Instructions recorded, dropped ones included
+     */
+    @Getter
+    private long recorded;
+
+    /**
+     * Instructions dropped because the writer fell behind
+     */
+    @Getter
+    private long dropped;
+
+    private volatile IOException error;
+
+    public Tracer(Chip8 chip8, Path path) throws IOException {
+        this(chip8, path, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Open a trace file and start its writer, attach with {@link Chip8#setTracer(Tracer)}
+     *
+     * @param chip8 machine being traced
+     * @param path of the trace, replaced if it exists
+     * @param segments preallocated, at least 2
+     * @throws IOException if the file can not be created
+     */
+    public Tracer(Chip8 chip8, Path path, int segments) throws IOException {
+        if (segments < 2)
+            throw new IllegalArgumentException("At least two segments are needed");
+
+        this.chip8 = chip8;
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                Files.newOutputStream(path), 1 << 16)));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+
+        free = new ArrayBlockingQueue<>(segments);
+        full = new ArrayBlockingQueue<>(segments + 1);
+        for (int i = 1; i < segments; i++)
+            free.add(new Segment());
+        segment = new Segment();
+
+        writer = new Thread(this::write, "Trace writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Called before every instruction while attached, on the emulation thread
+    void record(int entry) {
+        if (pending)
+            complete();
+
+        pending = true;
+        pendingPc = chip8.getPc() & 0xFFF;
+        pendingOp = entry & 0xFFFF;
+        System.arraycopy(chip8.getV(), 0, registers, 0, 16);
+    }
+
+    // Write the entry of the pending instruction from the state after it
+    private void complete() {
+        byte[] v = chip8.getV();
+        int changed = NO_REGISTER;
+        for (int i = 0; i < 16; i++) {
+            if (v[i] != registers[i]) {
+                changed = i;
+                break;
+            }
+        }
+        int value = changed == NO_REGISTER ? 0 : v[changed] & 0xFF;
+
+        segment.entries[position++] = pendingPc
+                | (long) pendingOp << 12
+                | (long) (chip8.getIndex() & 0xFFFF) << 28
+                | (long) changed << 44
+                | (long) value << 49;
+        recorded++;
+        pending = false;
+
+        if (position == SEGMENT_SIZE)
+            handOff();
+    }
+
+    private void handOff() {
+        Segment next = free.poll();
+        if (next == null) {
+            // Writer is behind, drop these entries instead of waiting for it
+            dropped += position;
+        } else {
+            segment.count = position;
+            full.add(segment);
+            segment = next;
+        }
+
+        segment.first = recorded;
+        position = 0;
+    }
+
+    /**
+     * Stop recording and hand the last entries to the writer, detach it from the machine first
+     * Only called by the emulation thread, does not wait for the writer
+     */
+    public void finish() {
+        if (finished)
+            return;
+        finished = true;
+
+        if (pending)
+            complete();
+        if (position > 0) {
+            segment.count = position;
+            full.add(segment);
+        }
+        full.add(END);
+    }
+
+    /**
+     * Wait for the writer to compress everything handed to it and close the file
+     *
+     * @throws IOException if writing failed
+     */
+    public void close() throws IOException {
+        if (!finished)
+            throw new IllegalStateException("Tracer has not been finished");
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the trace", e);
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    // Writer thread, segments go back to the free pool once written
+    private void write() {
+        ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE * Long.BYTES);
+
+        try {
+            Segment written;
+            while ((written = full.take()) != END) {
+                if (error == null) {
+                    try {
+                        buffer.clear();
+                        buffer.asLongBuffer().put(written.entries, 0, written.count);
+
+                        out.writeLong(written.first);
+                        out.writeInt(written.count);
+                        out.write(buffer.array(), 0, written.count * Long.BYTES);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                free.add(written);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (error == null)
+                error = e;
+        }
+    }
+
+    /**
+     * Write a trace as text, one instruction per line with its mnemonic, I and the register it changed
+     *
+     * @param path of the trace
+     * @param text to write to, not closed
+     * @throws IOException if the trace can not be read or is not a trace
+     */
+    public static void writeText(Path path, Writer text) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a Chippy8 trace");
+
+            short version = in.readShort();
+            if (version != VERSION)
+                throw new IOException(String.format("Unsupported trace version %d", version));
+            in.readShort();
+
+            long expected = 0;
+            while (true) {
+                long first;
+                try {
+                    first = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (first != expected)
+                    text.write(String.format("; %d instructions dropped%n", first - expected));
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                    writeEntry(text, first + i, in.readLong());
+                expected = first + count;
+            }
+        } catch (EOFException e) {
+            // A trace that was not closed ends in the middle of a segment, everything before it is still listed
+            text.write(String.format("; trace is truncated%n"));
+        }
+    }
+
+    private static void writeEntry(Writer text, long instruction, long entry) throws IOException {
+        int pc = (int) (entry & 0xFFF);
+        int op = (int) (entry >>> 12 & 0xFFFF);
+        int index = (int) (entry >>> 28 & 0xFFFF);
+        int changed = (int) (entry >>> 44 & 0x1F);
+
+        String line = String.format("%10d  %03X  %04X  %-16s I=%04X", instruction, pc, op, Disassembly.format(op), index);
+        if (changed != NO_REGISTER)
+            line += String.format("  V%X=%02X", changed, entry >>> 49 & 0xFF);
+        text.write(line);
+        text.write(System.lineSeparator());
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.riku32.chippy8.VM;
+
+import lombok.Getter;
+
+/**
+ * Stops the machine before an instruction reads or writes a range of memory
+ *
+ * Reads are made by DRW (sprite data) and LD Vx, [I], writes by LD B, Vx and LD [I], Vx.
+ */
+public final class Watchpoint {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+
+    // First and last address watched, inclusive
+    @Getter
+    private final int start;
+
+    @Getter
+    private final int end;
+
+    // READ, WRITE or both
+    @Getter
+    private final int access;
+
+    /**
+     * @param start first address watched
+     * @param end last address watched, inclusive
+     * @param access {@link #READ}, {@link #WRITE} or both
+     */
+    public Watchpoint(int start, int end, int access) {
+        if (start < 0 || end >= Memory.SIZE || start > end)
+            throw new IllegalArgumentException("Range outside of memory");
+        if ((access & (READ | WRITE)) == 0 || (access & ~(READ | WRITE)) != 0)
+            throw new IllegalArgumentException("Unknown access");
+
+        this.start = start;
+        this.end = end;
+        this.access = access;
+    }
+
+    public String toString() {
+        String kind = access == READ ? "r" : access == WRITE ? "w" : "rw";
+        return start == end
+                ? String.format("%s %03X", kind, start)
+                : String.format("%s %03X-%03X", kind, start, end);
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.riku32.chippy8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the beeper to a WAV file, one frame of samples per emulated frame regardless of how fast the machine runs
+ * Used by headless runs and tests, the file is complete once the sink is closed
+ */
+public class WavAudioSink implements AudioSink {
+    private static final int HEADER = 44;
+
+    private final FileChannel channel;
+    private final byte[] tone = AudioSink.tone(SAMPLES_PER_FRAME + TONE_PERIOD);
+    private final byte[] silence = new byte[SAMPLES_PER_FRAME * 2];
+
+    private int phase;
+    private long dataBytes;
+
+    /**
+     * Create the file
+     *
+     * @param path of the WAV file, replaced if it exists
+     * @throws IOException if the file can not be created
+     */
+    public WavAudioSink(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        channel.position(HEADER);
+    }
+
+    /**
+     * @throws UncheckedIOException if writing fails
+     */
+    public void frame(boolean beeping) {
+        ByteBuffer samples = beeping
+                ? ByteBuffer.wrap(tone, phase * 2, SAMPLES_PER_FRAME * 2)
+                : ByteBuffer.wrap(silence);
+        phase = beeping ? (phase + SAMPLES_PER_FRAME) % TONE_PERIOD : 0;
+
+        try {
+            while (samples.hasRemaining())
+                dataBytes += channel.write(samples);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sizes are only known at the end, the header is written last
+    public void close() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) (36 + dataBytes)).putInt(0x45564157); // "RIFF" size "WAVE"
+        header.putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) 1); // "fmt " PCM mono
+        header.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        header.putInt(0x61746164).putInt((int) dataBytes); // "data"
+        header.flip();
+
+        try {
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        } finally {
+            channel.close();
+        }
+    }
+}
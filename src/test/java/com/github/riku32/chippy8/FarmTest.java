@@ -0,0 +1,124 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class FarmTest {
+    // Adds to VA forever
+    private static final byte[] ROM = {
+            0x7A, 0x01,         // 200: ADD VA, 01
+            0x12, 0x00          // 202: JP 200
+    };
+
+    @Test
+    public void runsSessionsInRealTime() throws Exception {
+        try (Farm farm = new Farm(2)) {
+            Farm.Session[] sessions = new Farm.Session[50];
+            for (int i = 0; i < sessions.length; i++)
+                sessions[i] = farm.create(ROM, 600);
+
+            Thread.sleep(500);
+
+            // About 30 frames each, no session is left behind
+            for (Farm.Session session : sessions) {
+                assertTrue(session.getFrames() >= 15 && session.getFrames() <= 45);
+                assertEquals(session.getFrames() * 10, session.getCycles());
+            }
+        }
+    }
+
+    @Test
+    public void pausedSessionStillRunsCommands() throws Exception {
+        try (Farm farm = new Farm(1)) {
+            Farm.Session session = farm.create(ROM, 600);
+            session.setPaused(true);
+            Thread.sleep(100);
+            long frames = session.getFrames();
+
+            // Nothing ran yet
+            assertEquals(Integer.valueOf(0x200),
+                    session.call(chip8 -> (int) chip8.getPc()).get(1, TimeUnit.SECONDS));
+
+            Thread.sleep(100);
+            assertEquals(frames, session.getFrames());
+
+            session.setPaused(false);
+            Thread.sleep(200);
+            assertTrue(session.getFrames() > frames);
+        }
+    }
+
+    @Test
+    public void destroyedSessionIsForgotten() throws Exception {
+        try (Farm farm = new Farm(1)) {
+            Farm.Session session = farm.create(ROM, 600);
+            farm.destroy(session);
+            Thread.sleep(100);
+            long frames = session.getFrames();
+
+            Thread.sleep(100);
+            assertTrue(session.isDestroyed());
+            assertFalse(farm.getSessions().contains(session));
+            assertEquals(frames, session.getFrames());
+        }
+    }
+
+    @Test
+    public void failedSessionLeavesCarrier() throws Exception {
+        try (Farm farm = new Farm(1)) {
+            // Calls itself until the 16 entry stack overflows
+            Farm.Session failing = farm.create(new byte[]{0x22, 0x00}, 600);
+            Farm.Session healthy = farm.create(ROM, 600);
+
+            Thread.sleep(200);
+            long frames = healthy.getFrames();
+            Thread.sleep(200);
+
+            assertTrue(failing.isDestroyed());
+            assertTrue(failing.getFailure() instanceof ArrayIndexOutOfBoundsException);
+            assertFalse(farm.getSessions().contains(failing));
+            assertTrue(healthy.getFrames() > frames);
+        }
+    }
+
+    @Test
+    public void quotaThrottlesSession() throws Exception {
+        try (Farm farm = new Farm(1)) {
+            // A million cycles per second can not fit in a thousandth of a core
+            Farm.Session limited = farm.create(ROM, 1000000);
+            limited.setQuota(0.001);
+            Farm.Session free = farm.create(ROM, 600);
+
+            Thread.sleep(500);
+
+            assertTrue(limited.getThrottledFrames() > 0);
+            assertTrue(limited.getFrames() < free.getFrames());
+        }
+    }
+
+    @Test
+    public void framesReachSubscribers() throws Exception {
+        try (Farm farm = new Farm(1)) {
+            Farm.Session session = farm.create(new byte[]{
+                    0x60, 0x00,         // 200: LD V0, 00
+                    (byte) 0xD0, 0x01,  // 202: DRW V0, V0, 1 (font byte F0 of 0)
+                    0x12, 0x04          // 204: JP 204
+            }, 600);
+            FrameExchange exchange = session.subscribe();
+
+            FrameExchange.Frame frame = null;
+            for (int i = 0; i < 100 && frame == null; i++) {
+                Thread.sleep(10);
+                frame = exchange.acquire();
+            }
+
+            assertTrue(frame != null);
+            assertEquals(0xF0L << 56, frame.getRows()[0]);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class FrameExchangeTest {
+    @Test
+    public void consumerGetsNewestFrame() {
+        FrameExchange exchange = new FrameExchange();
+        assertNull(exchange.acquire());
+
+        long[] rows = new long[32];
+        rows[0] = 1;
+        exchange.publish(rows, 1);
+        rows[0] = 2;
+        exchange.publish(rows, 1);
+
+        FrameExchange.Frame frame = exchange.acquire();
+        assertEquals(2, frame.getRows()[0]);
+        assertEquals(1, frame.getSequence());
+        assertNull(exchange.acquire());
+    }
+
+    @Test
+    public void skippedFramesCarryTheirRows() {
+        FrameExchange exchange = new FrameExchange();
+        long[] rows = new long[32];
+
+        exchange.publish(rows, 0);
+        exchange.acquire();
+
+        exchange.publish(rows, 1 << 3);
+        exchange.publish(rows, 1 << 5);
+        exchange.publish(rows, 0);
+        assertEquals(1 << 3 | 1 << 5, exchange.acquire().getDirtyRows());
+    }
+
+    @Test
+    public void firstFrameIsFullyDirty() {
+        FrameExchange exchange = new FrameExchange();
+        exchange.publish(new long[32], 0);
+        assertEquals(-1, exchange.acquire().getDirtyRows());
+    }
+
+    @Test
+    public void firstFrameStaysFullyDirtyWhenSkipped() {
+        FrameExchange exchange = new FrameExchange();
+        exchange.publish(new long[32], 0);
+        exchange.publish(new long[32], 1 << 2);
+        assertEquals(-1, exchange.acquire().getDirtyRows());
+
+        // Rows stop being pending only once the producer saw the frame taken
+        exchange.publish(new long[32], 0);
+        exchange.publish(new long[32], 1 << 4);
+        assertEquals(1 << 4, exchange.acquire().getDirtyRows());
+    }
+
+    @Test
+    public void publishingLeavesTheAcquiredFrameAlone() {
+        FrameExchange exchange = new FrameExchange();
+        long[] rows = new long[32];
+
+        rows[7] = 7;
+        exchange.publish(rows, -1);
+        FrameExchange.Frame held = exchange.acquire();
+
+        for (int i = 0; i < 10; i++) {
+            rows[7] = i;
+            exchange.publish(rows, 1 << 7);
+            assertEquals(7, held.getRows()[7]);
+        }
+        assertNotSame(held, exchange.acquire());
+    }
+}
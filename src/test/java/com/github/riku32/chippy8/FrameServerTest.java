@@ -0,0 +1,129 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class FrameServerTest {
+    private static FrameServer server() throws IOException {
+        FrameServer server = new FrameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+        return server;
+    }
+
+    private static Socket connect(FrameServer server) throws IOException {
+        Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    // Publish until the server has picked the client up and sent it something
+    private static void publishUntilAvailable(FrameServer server, Socket socket, long[] rows) throws Exception {
+        for (int i = 0; i < 500 && socket.getInputStream().available() == 0; i++) {
+            server.publish(rows, -1);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int awaitKeys(FrameServer server, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && server.keypad().state() != expected; i++)
+            Thread.sleep(10);
+        return server.keypad().state();
+    }
+
+    @Test
+    public void tcpClientGetsRowDeltas() throws Exception {
+        try (FrameServer server = server()) {
+            try (Socket socket = connect(server)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeBytes("C8FS");
+                out.flush();
+
+                long[] rows = new long[32];
+                rows[3] = 0xF0L;
+                rows[31] = 1L << 63;
+                publishUntilAvailable(server, socket, rows);
+
+                // First frame is a delta against a blank screen
+                assertEquals(FrameServer.FRAME, in.readByte());
+                assertEquals(1 << 3 | 1 << 31, in.readInt());
+                assertEquals(0xF0L, in.readLong());
+                assertEquals(1L << 63, in.readLong());
+
+                long[] next = rows.clone();
+                next[3] = 0x0FL;
+                server.publish(next, 1 << 3);
+
+                assertEquals(FrameServer.FRAME, in.readByte());
+                assertEquals(1 << 3, in.readInt());
+                assertEquals(0xFFL, in.readLong());
+
+                out.writeByte(FrameServer.KEYS);
+                out.writeShort(1 << 5 | 1 << 0xA);
+                out.flush();
+                assertEquals(1 << 5 | 1 << 0xA, awaitKeys(server, 1 << 5 | 1 << 0xA));
+                assertTrue(server.keypad().pressed(5));
+            }
+
+            // Keys of a client are released when it leaves
+            assertEquals(0, awaitKeys(server, 0));
+        }
+    }
+
+    @Test
+    public void webSocketClient() throws Exception {
+        try (FrameServer server = server(); Socket socket = connect(server)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(("GET / HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1), 1);
+            assertEquals("HTTP/1.1 101 Switching Protocols", reader.readLine());
+            boolean accepted = false;
+            String line;
+            while (!(line = reader.readLine()).isEmpty())
+                accepted |= line.equals("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+            assertTrue(accepted);
+
+            long[] rows = new long[32];
+            rows[0] = 1;
+            publishUntilAvailable(server, socket, rows);
+
+            assertEquals(0x82, in.readUnsignedByte());
+            assertEquals(13, in.readUnsignedByte());
+            assertEquals(FrameServer.FRAME, in.readByte());
+            assertEquals(1, in.readInt());
+            assertEquals(1L, in.readLong());
+
+            // Masked binary message with the keys
+            byte[] mask = {0x12, 0x34, 0x56, 0x78};
+            byte[] payload = {FrameServer.KEYS, 0x00, 0x02};
+            out.writeByte(0x82);
+            out.writeByte(0x80 | payload.length);
+            out.write(mask);
+            for (int i = 0; i < payload.length; i++)
+                out.writeByte(payload[i] ^ mask[i]);
+            out.flush();
+
+            assertEquals(1 << 1, awaitKeys(server, 1 << 1));
+        }
+    }
+}
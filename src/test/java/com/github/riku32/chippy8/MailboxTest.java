@@ -0,0 +1,52 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class MailboxTest {
+    @Test
+    public void commandsRunInOrderWhenDrained() throws Exception {
+        Mailbox mailbox = new Mailbox();
+        List<Integer> ran = new ArrayList<>();
+
+        CompletableFuture<Void> first = mailbox.run(() -> ran.add(1));
+        CompletableFuture<Integer> second = mailbox.call(() -> {
+            ran.add(2);
+            return 42;
+        });
+        assertFalse(first.isDone());
+        assertTrue(ran.isEmpty());
+
+        assertEquals(2, mailbox.drain());
+        assertEquals(1, (int) ran.get(0));
+        assertEquals(2, (int) ran.get(1));
+        assertEquals(42, (int) second.get());
+        assertEquals(0, mailbox.drain());
+    }
+
+    @Test
+    public void failuresCompleteTheFuture() throws InterruptedException {
+        Mailbox mailbox = new Mailbox();
+        CompletableFuture<Object> result = mailbox.call(() -> {
+            throw new IOException("bad state");
+        });
+        mailbox.drain();
+
+        try {
+            result.get();
+            fail("Expected the command to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MetricsTest {
+    @Test
+    public void frameTimesLandInBuckets() {
+        Metrics metrics = new Metrics(new Chip8(key -> false));
+        metrics.frameTime(100_000);
+        metrics.frameTime(1_500_000);
+        metrics.frameTime(1_000_000_000);
+
+        Map<String, Long> histogram = metrics.getFrameTimeHistogram();
+        assertEquals(1, (long) histogram.get("<=0.25ms"));
+        assertEquals(1, (long) histogram.get("<=2.00ms"));
+        assertEquals(1, (long) histogram.get("more"));
+    }
+
+    @Test
+    public void textListsEveryCounter() {
+        Metrics metrics = new Metrics(new Chip8(key -> false));
+        metrics.frame(10);
+        metrics.frame(12);
+        metrics.stateSaved(3_000_000);
+
+        String text = metrics.toText();
+        assertTrue(text.contains("instructions 22\n"));
+        assertTrue(text.contains("frames 2\n"));
+        assertTrue(text.contains("state_save_ms 3.000"));
+        assertTrue(text.contains("opcodes{family=\"DXYN DRW\"} 0\n"));
+    }
+}
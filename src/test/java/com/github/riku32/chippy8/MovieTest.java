@@ -0,0 +1,76 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class MovieTest {
+    // Record Tetris with a few keys pressed, Tetris uses RND for every piece
+    private static Movie record() throws IOException {
+        ScriptedKeypad keypad = new ScriptedKeypad(new int[]{0, 100, 130, 300}, new int[]{0, 1 << 5, 1 << 4, 0});
+        Headless headless = new Headless(Files.readAllBytes(Paths.get("roms", "Tetris.ch8")), keypad, 600, 0, false, false);
+        Movie movie = new Movie(headless.getChip8().saveState());
+        for (int frame = 0; frame < 600; frame++) {
+            headless.frame(frame);
+            movie.record(keypad.state(), 10, headless.getChip8().frameHash());
+        }
+        return movie;
+    }
+
+    private static boolean play(Movie movie, boolean recompile) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            return new Headless(movie, recompile, false).play(movie, 0);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    @Test
+    public void replayMatchesRecording() throws IOException {
+        Movie movie = record();
+        assertTrue(play(movie, false));
+        assertTrue(play(movie, true));
+    }
+
+    @Test
+    public void differentInputDesyncs() throws IOException {
+        Movie recorded = record();
+        Movie altered = new Movie(recorded.getStart());
+        for (int frame = 0; frame < recorded.getFrames(); frame++)
+            altered.record(frame == 100 ? 1 << 6 : recorded.keys(frame), recorded.cycles(frame), recorded.hash(frame));
+
+        assertFalse(play(altered, false));
+    }
+
+    @Test
+    public void fileRoundTrip() throws IOException {
+        Movie movie = record();
+        Path path = Files.createTempFile("chippy8-movie", ".c8m");
+        try {
+            movie.write(path);
+            Movie loaded = Movie.load(path);
+
+            assertArrayEquals(movie.getStart(), loaded.getStart());
+            assertEquals(movie.getFrames(), loaded.getFrames());
+            for (int frame = 0; frame < movie.getFrames(); frame++) {
+                assertEquals(movie.keys(frame), loaded.keys(frame));
+                assertEquals(movie.cycles(frame), loaded.cycles(frame));
+                assertEquals(movie.hash(frame), loaded.hash(frame));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.github.riku32.chippy8.VM.Chip8;
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StateStoreTest {
+    private static List<byte[]> states(int count) throws Exception {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(Files.readAllBytes(Paths.get("roms", "Invaders.ch8")));
+
+        List<byte[]> states = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            for (int cycle = 0; cycle < 500; cycle++)
+                chip8.cycle();
+            states.add(chip8.saveState());
+        }
+        return states;
+    }
+
+    @Test
+    public void statesShareRomPages() throws Exception {
+        Path directory = Files.createTempDirectory("chippy8-store");
+        List<byte[]> states = states(50);
+
+        StateStore store = new StateStore(directory);
+        for (int i = 0; i < states.size(); i++)
+            store.save("slot" + i, states.get(i)).get();
+
+        // Saving the same state under the same label again is free
+        StateStore.Entry last = store.latest();
+        assertSame(last, store.save(last.getLabel(), states.get(states.size() - 1)).get());
+        store.close();
+
+        // ROM pages are stored once, far below one full copy per state
+        assertTrue(Files.size(directory.resolve("pages.dat")) > 0);
+        StateStore reopened = new StateStore(directory);
+        reopened.opened().get();
+        assertEquals(50, reopened.list().size());
+        long used = 0;
+        for (StateStore.Entry entry : reopened.list())
+            for (long page : entry.getPages())
+                used = Math.max(used, page);
+        assertTrue(used < 50L * Chip8.STATE_SIZE / 4);
+
+        for (int i = 0; i < states.size(); i++)
+            assertArrayEquals(states.get(i), reopened.load(reopened.latest("slot" + i)).get());
+        reopened.close();
+    }
+
+    @Test
+    public void tornIndexRecordIsIgnored() throws Exception {
+        Path directory = Files.createTempDirectory("chippy8-store");
+        List<byte[]> states = states(3);
+
+        StateStore store = new StateStore(directory);
+        for (byte[] state : states)
+            store.save("quick", state).get();
+        store.close();
+
+        // Cut the last record in half as if the process died while appending it
+        try (FileChannel index = FileChannel.open(directory.resolve("index.dat"), StandardOpenOption.WRITE)) {
+            index.truncate(index.size() - 20);
+        }
+
+        StateStore reopened = new StateStore(directory);
+        reopened.opened().get();
+        assertEquals(2, reopened.list().size());
+        assertArrayEquals(states.get(1), reopened.load(reopened.latest("quick")).get());
+
+        // New states append after the last good record
+        reopened.save("quick", states.get(2)).get();
+        reopened.close();
+
+        StateStore again = new StateStore(directory);
+        again.opened().get();
+        assertEquals(3, again.list().size());
+        assertArrayEquals(states.get(2), again.load(again.latest()).get());
+        again.close();
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class BreakpointsTest {
+    // Counts VA up, storing it at 300 every pass and drawing from 300 afterwards
+    private static final byte[] ROM = {
+            0x6A, 0x00,             // 200: LD VA, 00
+            0x7A, 0x01,             // 202: ADD VA, 01
+            (byte) 0xA3, 0x00,      // 204: LD I, 300
+            (byte) 0xFA, 0x55,      // 206: LD [I], VA
+            0x3A, 0x05,             // 208: SE VA, 05
+            0x12, 0x02,             // 20A: JP 202
+            (byte) 0xD0, 0x01,      // 20C: DRW V0, V0, 1
+            0x12, 0x0E              // 20E: JP 20E
+    };
+
+    private static Chip8 machine(Breakpoints breakpoints) {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(ROM);
+        chip8.setBreakpoints(breakpoints);
+        return chip8;
+    }
+
+    private static void run(Chip8 chip8, int cycles) {
+        for (int i = 0; i < cycles; i++)
+            chip8.cycle();
+    }
+
+    @Test
+    public void stopsBeforeBreakpoint() {
+        Breakpoints breakpoints = new Breakpoints();
+        breakpoints.add(new Breakpoint(0x204));
+        Chip8 chip8 = machine(breakpoints);
+
+        run(chip8, 100);
+        assertEquals(0x204, chip8.getPc());
+        assertEquals(1, chip8.getV()[0xA]);
+        assertEquals("Breakpoint 204", breakpoints.getHit());
+
+        // The stopped instruction runs once, the next pass stops again
+        breakpoints.resume();
+        assertNull(breakpoints.getHit());
+        run(chip8, 100);
+        assertEquals(0x204, chip8.getPc());
+        assertEquals(2, chip8.getV()[0xA]);
+    }
+
+    @Test
+    public void conditionComparesRegister() {
+        Breakpoints breakpoints = new Breakpoints();
+        breakpoints.add(new Breakpoint(0x208, 0xA, Breakpoint.Comparison.GREATER_OR_EQUAL, 3));
+        Chip8 chip8 = machine(breakpoints);
+
+        run(chip8, 100);
+        assertEquals(0x208, chip8.getPc());
+        assertEquals(3, chip8.getV()[0xA]);
+    }
+
+    @Test
+    public void watchpointsStopBeforeAccess() {
+        Breakpoints breakpoints = new Breakpoints();
+        breakpoints.add(new Watchpoint(0x30B, 0x30F, Watchpoint.WRITE));
+        breakpoints.add(new Watchpoint(0x300, 0x300, Watchpoint.READ));
+        Chip8 chip8 = machine(breakpoints);
+
+        // Stores end at 30A and only the sprite read touches 300
+        run(chip8, 100);
+        assertEquals(0x20C, chip8.getPc());
+        assertEquals("Watchpoint read of 300 at 20C", breakpoints.getHit());
+        assertEquals(5, chip8.getMemory().read(0x30A));
+    }
+
+    @Test
+    public void writeWatchpointCoversWholeStore() {
+        Breakpoints breakpoints = new Breakpoints();
+        breakpoints.add(new Watchpoint(0x30A, 0x30A, Watchpoint.WRITE));
+        Chip8 chip8 = machine(breakpoints);
+
+        // LD [I], VA stores V0 to VA, its last byte lands on 30A
+        run(chip8, 100);
+        assertEquals(0x206, chip8.getPc());
+        assertEquals("Watchpoint write of 30A at 206", breakpoints.getHit());
+    }
+
+    @Test
+    public void emptySetIsNotArmed() {
+        Breakpoints breakpoints = new Breakpoints();
+        Chip8 chip8 = machine(breakpoints);
+        assertNull(chip8.getBreakpoints());
+
+        breakpoints.add(new Breakpoint(0x20E));
+        chip8.setBreakpoints(breakpoints);
+        breakpoints.remove(breakpoints.getBreakpoints().get(0));
+        chip8.setBreakpoints(breakpoints);
+        assertNull(chip8.getBreakpoints());
+
+        run(chip8, 100);
+        assertNull(breakpoints.getHit());
+    }
+
+    @Test
+    public void recompilerStopsAtBreakpoint() {
+        Breakpoints breakpoints = new Breakpoints();
+        breakpoints.add(new Breakpoint(0x204, 0xA, Breakpoint.Comparison.EQUAL, 4));
+        Chip8 chip8 = machine(breakpoints);
+
+        new Recompiler(chip8).run(1000);
+        assertEquals(0x204, chip8.getPc());
+        assertEquals(4, chip8.getV()[0xA]);
+    }
+}
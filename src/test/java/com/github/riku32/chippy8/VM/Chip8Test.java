@@ -0,0 +1,181 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+public class Chip8Test {
+    // Assemble opcodes into a ROM buffer
+    private static byte[] rom(int... ops) {
+        byte[] rom = new byte[ops.length * 2];
+        for (int i = 0; i < ops.length; i++) {
+            rom[i * 2] = (byte) (ops[i] >> 8);
+            rom[i * 2 + 1] = (byte) ops[i];
+        }
+        return rom;
+    }
+
+    private static Chip8 run(byte[] rom, int cycles) {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(rom);
+        for (int i = 0; i < cycles; i++)
+            chip8.cycle();
+        return chip8;
+    }
+
+    @Test
+    public void selfModifyingWriteInvalidatesDecode() {
+        Chip8 chip8 = run(rom(
+                0x606A, // LD V0, 6A
+                0x6102, // LD V1, 02
+                0xA20C, // LD I, 20C
+                0x220C, // CALL 20C
+                0xF155, // LD [I], V1 (rewrites 20C to LD VA, 02)
+                0x220C, // CALL 20C
+                0x6A01, // LD VA, 01
+                0x00EE  // RET
+        ), 10);
+
+        assertEquals(2, chip8.getV()[0xA]);
+    }
+
+    @Test
+    public void loadRomInvalidatesDecode() {
+        Chip8 chip8 = run(rom(0x6A01), 1);
+        assertEquals(1, chip8.getV()[0xA]);
+
+        chip8.loadRom(rom(0x6A05));
+        chip8.cycle();
+        assertEquals(5, chip8.getV()[0xA]);
+    }
+
+    @Test
+    public void spritesWrapAndCollide() {
+        Chip8 chip8 = run(rom(
+                0x603E, // LD V0, 3E
+                0x611E, // LD V1, 1E
+                0xF229, // LD F, V2 (digit 0)
+                0xD015, // DRW V0, V1, 5
+                0xD015  // DRW V0, V1, 5
+        ), 4);
+
+        // Top row of 0 is F0, split between columns 62-63 and 0-1
+        assertTrue(chip8.getPixel(62, 30));
+        assertTrue(chip8.getPixel(63, 30));
+        assertTrue(chip8.getPixel(0, 30));
+        assertTrue(chip8.getPixel(1, 30));
+        assertFalse(chip8.getPixel(2, 30));
+        // Rows past the bottom wrap to the top
+        assertTrue(chip8.getPixel(62, 0));
+        assertEquals(0, chip8.getV()[0xF]);
+
+        chip8.cycle();
+        assertEquals(1, chip8.getV()[0xF]);
+        assertEquals(0, chip8.getVideoMemory()[30 * 64 + 62]);
+    }
+
+    @Test
+    public void drawingMarksDirtyRows() {
+        Chip8 chip8 = run(rom(
+                0x6000, // LD V0, 00
+                0x611E, // LD V1, 1E
+                0xD013, // DRW V0, V1, 3
+                0x00E0  // CLS
+        ), 0);
+        assertEquals(-1, chip8.takeDirtyRows());
+        assertEquals(0, chip8.takeDirtyRows());
+
+        for (int i = 0; i < 3; i++)
+            chip8.cycle();
+        // Rows 30, 31 and 0 after wrapping
+        assertEquals(1 << 30 | 1 << 31 | 1, chip8.takeDirtyRows());
+
+        chip8.cycle();
+        assertEquals(-1, chip8.takeDirtyRows());
+    }
+
+    @Test
+    public void stampsTrackChanges() {
+        Chip8 chip8 = run(rom(0x6A01, 0xFA15, 0x1204), 0);
+        long loaded = chip8.stamp();
+        assertEquals(loaded, chip8.getStamp(Chip8.STAMP_PC));
+        assertEquals(loaded, chip8.getStamp(Chip8.STAMP_MEMORY));
+
+        chip8.tickTimers();
+        assertEquals(loaded, chip8.stamp());
+
+        chip8.cycle();
+        long set = chip8.stamp();
+        assertTrue(set > loaded);
+        assertEquals(set, chip8.getStamp(Chip8.STAMP_REGISTERS + 0xA));
+        assertEquals(set, chip8.getStamp(Chip8.STAMP_PC));
+        assertEquals(0, chip8.getStamp(Chip8.STAMP_REGISTERS));
+
+        chip8.cycle();
+        long delayed = chip8.stamp();
+        assertEquals(delayed, chip8.getStamp(Chip8.STAMP_DELAY_TIMER));
+        assertEquals(set, chip8.getStamp(Chip8.STAMP_REGISTERS + 0xA));
+
+        // Delay timer is now 1, ticking it changes the state
+        chip8.tickTimers();
+        long ticked = chip8.stamp();
+        assertTrue(ticked > delayed);
+        assertEquals(ticked, chip8.getStamp(Chip8.STAMP_DELAY_TIMER));
+        assertEquals(delayed, chip8.getStamp(Chip8.STAMP_PC));
+
+        // Spinning on the jump changes nothing
+        chip8.cycle();
+        chip8.cycle();
+        chip8.tickTimers();
+        assertEquals(ticked, chip8.stamp());
+        assertEquals(loaded, chip8.getStamp(Chip8.STAMP_MEMORY));
+    }
+
+    @Test
+    public void waitForKeyTakesHighestHeldKey() {
+        Chip8 chip8 = new Chip8(key -> key == 0x3 || key == 0xB);
+        chip8.loadRom(rom(0xF50A));
+        chip8.cycle();
+
+        assertEquals(0xB, chip8.getV()[5]);
+        assertEquals(0x202, chip8.getPc());
+    }
+
+    @Test
+    public void queuedEventsApplyOnePerKeyInstruction() {
+        // Key 4 is tapped and already released before the program checks it
+        Queue<KeypadEvent> events = new ArrayDeque<>();
+        events.add(new KeypadEvent(4, true, 1 << 4, 100));
+        events.add(new KeypadEvent(4, false, 0, 200));
+        Keypad keypad = new Keypad() {
+            public boolean pressed(int key) {
+                return false;
+            }
+
+            public KeypadEvent poll() {
+                return events.poll();
+            }
+        };
+
+        Chip8 chip8 = new Chip8(keypad);
+        chip8.loadRom(rom(
+                0x6004, // LD V0, 4
+                0xE09E, // SKP V0
+                0x6101, // LD V1, 1
+                0xE09E, // SKP V0
+                0x6201  // LD V2, 1
+        ));
+        for (int i = 0; i < 5; i++)
+            chip8.cycle();
+
+        assertEquals(0, chip8.getV()[1]);
+        assertEquals(1, chip8.getV()[2]);
+        assertEquals(100, chip8.takeInputNanos());
+        assertEquals(0, chip8.takeInputNanos());
+    }
+}
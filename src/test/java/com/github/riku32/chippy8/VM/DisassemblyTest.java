@@ -0,0 +1,83 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+
+public class DisassemblyTest {
+    private static Disassembly analyze(int... ops) {
+        byte[] rom = new byte[ops.length * 2];
+        for (int i = 0; i < ops.length; i++) {
+            rom[i * 2] = (byte) (ops[i] >> 8);
+            rom[i * 2 + 1] = (byte) ops[i];
+        }
+
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(rom);
+        return chip8.getDisassembly();
+    }
+
+    private static final int[] PROGRAM = {
+            0x220A, // 200 CALL 20A
+            0x3A01, // 202 SE VA, 01
+            0x1206, // 204 JP 206
+            0x1206, // 206 JP 206
+            0xFFFF, // 208 data
+            0x6A01, // 20A LD VA, 01
+            0x00EE  // 20C RET
+    };
+
+    @Test
+    public void followsControlFlow() {
+        Disassembly disassembly = analyze(PROGRAM);
+
+        assertEquals("CALL 20A", disassembly.mnemonic(0x200));
+        assertEquals("LD VA, 1", disassembly.mnemonic(0x20A));
+        assertFalse(disassembly.isCode(0x208));
+        assertNull(disassembly.mnemonic(0x208));
+
+        assertEquals(Collections.singleton(0x20A), disassembly.getCallGraph().get(0x200));
+        assertTrue(disassembly.getCallGraph().get(0x20A).isEmpty());
+    }
+
+    @Test
+    public void buildsBasicBlocks() {
+        Disassembly disassembly = analyze(PROGRAM);
+
+        // 200, 202, 204, 206 and 20A
+        assertEquals(5, disassembly.getBlocks().size());
+        assertArrayEquals(new int[]{0x202}, disassembly.getBlocks().get(0x200).getSuccessors());
+        assertArrayEquals(new int[]{0x204, 0x206}, disassembly.getBlocks().get(0x202).getSuccessors());
+        assertArrayEquals(new int[]{0x206}, disassembly.getBlocks().get(0x206).getSuccessors());
+        assertEquals(0x20E, disassembly.getBlocks().get(0x20A).getEnd());
+        assertEquals(0, disassembly.getBlocks().get(0x20A).getSuccessors().length);
+    }
+
+    @Test
+    public void describeSeesRewrittenCode() {
+        Disassembly disassembly = analyze(PROGRAM);
+
+        assertEquals("LD VA, 1", disassembly.describe(0x20A, 0x6A01));
+        assertEquals("LD VA, 2", disassembly.describe(0x20A, 0x6A02));
+    }
+
+    @Test
+    public void listsCodeAndData() throws IOException {
+        StringWriter listing = new StringWriter();
+        analyze(PROGRAM).writeListing(listing);
+
+        String text = listing.toString();
+        assertTrue(text.startsWith("sub_200:"));
+        assertTrue(text.contains("sub_20A:"));
+        assertTrue(text.contains("L_206:"));
+        assertTrue(text.contains("208  FF    DB FF"));
+    }
+}
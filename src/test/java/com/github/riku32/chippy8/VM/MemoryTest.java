@@ -0,0 +1,42 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MemoryTest {
+    @Test
+    public void accessesWrapAround() {
+        Memory memory = new Memory();
+        memory.write(Memory.SIZE, 0x12);
+        memory.write(Memory.SIZE - 1, 0x34);
+
+        assertEquals(0x12, memory.read(0));
+        assertEquals(0x3412, memory.readWord(Memory.SIZE - 1));
+    }
+
+    @Test
+    public void storesUnsignedBytes() {
+        Memory memory = new Memory();
+        memory.write(0x300, (byte) 0xF0);
+
+        assertEquals(0xF0, memory.read(0x300));
+        assertEquals(0xF000, memory.readWord(0x300));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void bulkLoadIsChecked() {
+        new Memory().load(Memory.SIZE - 1, new byte[2]);
+    }
+
+    @Test
+    public void mismatchFindsFirstDifference() {
+        Memory a = new Memory();
+        Memory b = new Memory();
+        assertEquals(-1, a.mismatch(b));
+
+        b.write(0x234, 1);
+        assertEquals(0x234, a.mismatch(b));
+        assertEquals(-1, b.mismatch(b.snapshot()));
+    }
+}
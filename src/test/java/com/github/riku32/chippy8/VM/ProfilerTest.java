@@ -0,0 +1,85 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class ProfilerTest {
+    // Counts to 0x10 in VA and then spins on itself
+    private static final byte[] ROM = {
+            0x6A, 0x00,         // 200: LD VA, 00
+            0x7A, 0x01,         // 202: ADD VA, 01
+            0x3A, 0x10,         // 204: SE VA, 10
+            0x12, 0x02,         // 206: JP 202
+            0x12, 0x08          // 208: JP 208
+    };
+
+    private static Profiler profile(boolean recompile, int cycles) {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(ROM);
+        Profiler profiler = new Profiler();
+        chip8.setProfiler(profiler);
+
+        if (recompile) {
+            new Recompiler(chip8).run(cycles);
+        } else {
+            for (int i = 0; i < cycles; i++)
+                chip8.cycle();
+        }
+        return profiler;
+    }
+
+    @Test
+    public void countsEveryInstruction() {
+        Profiler profiler = profile(false, 100);
+
+        assertEquals(100, profiler.getTotal());
+        assertEquals(1, profiler.hits(0x200));
+        assertEquals(16, profiler.hits(0x202));
+        assertEquals(15, profiler.hits(0x206));
+        assertEquals(100 - 1 - 16 * 2 - 15, profiler.hits(0x208));
+        assertArrayEquals(new int[]{0x208, 0x202}, profiler.hotspots(2));
+    }
+
+    @Test
+    public void recompiledBlocksMatchInterpreter() {
+        Profiler interpreted = profile(false, 1000);
+        Profiler recompiled = profile(true, 1000);
+
+        assertEquals(interpreted.getTotal(), recompiled.getTotal());
+        for (int address = 0x200; address < 0x20A; address += 2)
+            assertEquals(interpreted.hits(address), recompiled.hits(address));
+    }
+
+    @Test
+    public void listingAnnotatesOpcodes() throws IOException {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(ROM);
+        Profiler profiler = new Profiler();
+        chip8.setProfiler(profiler);
+        for (int i = 0; i < 10; i++)
+            chip8.cycle();
+
+        StringWriter listing = new StringWriter();
+        profiler.writeListing(listing, chip8);
+
+        assertTrue(listing.toString().contains("; covered 4 of 5 reachable instructions"));
+        assertTrue(listing.toString().contains("202  7A01  ADD VA, 1"));
+    }
+
+    @Test
+    public void resetForgetsCounts() {
+        Profiler profiler = profile(false, 50);
+        profiler.reset();
+
+        assertEquals(0, profiler.getTotal());
+        assertEquals(0, profiler.getMaxHits());
+        assertEquals(0, profiler.hits(0x208));
+        assertTrue(profiler.getCoverage().isEmpty());
+    }
+}
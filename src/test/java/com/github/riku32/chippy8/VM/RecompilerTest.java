@@ -0,0 +1,95 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class RecompilerTest {
+    @Test
+    public void lockstepMatchesInterpreter() throws IOException {
+        byte[] rom = Files.readAllBytes(Paths.get("roms", "Instruction-test.ch8"));
+
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(rom);
+        Recompiler recompiler = new Recompiler(chip8);
+        recompiler.setLockstep(true);
+
+        // Throws on the first divergence
+        assertEquals(100000, recompiler.run(100000));
+    }
+
+    @Test
+    public void selfModifyingWriteInvalidatesBlock() {
+        // Loop that rewrites the ADD immediate after its own first iterations
+        byte[] rom = {
+                0x6A, 0x00,         // 200: LD VA, 00
+                0x6B, 0x00,         // 202: LD VB, 00
+                0x7A, 0x01,         // 204: ADD VA, 01
+                0x7B, 0x01,         // 206: ADD VB, 01
+                0x3B, 0x20,         // 208: SE VB, 20
+                0x12, 0x04,         // 20A: JP 204
+                0x60, 0x7A,         // 20C: LD V0, 7A
+                0x61, 0x10,         // 20E: LD V1, 10
+                (byte) 0xA2, 0x04,  // 210: LD I, 204
+                (byte) 0xF1, 0x55,  // 212: LD [I], V1 (ADD VA, 10)
+                0x6B, 0x00,         // 214: LD VB, 00
+                0x12, 0x04          // 216: JP 204
+        };
+
+        Chip8 interpreted = new Chip8(key -> false);
+        interpreted.loadRom(rom);
+        for (int i = 0; i < 500; i++)
+            interpreted.cycle();
+
+        Chip8 compiled = new Chip8(key -> false);
+        compiled.loadRom(rom);
+        new Recompiler(compiled).run(500);
+
+        assertEquals(interpreted.getPc(), compiled.getPc());
+        assertArrayEquals(interpreted.getV(), compiled.getV());
+    }
+
+    @Test
+    public void keyReadsMatchInterpreter() {
+        // Waits for a key, then counts in VB while key 1 is held
+        byte[] rom = {
+                (byte) 0xF0, 0x0A,  // 200: LD V0, K
+                0x61, 0x01,         // 202: LD V1, 01
+                (byte) 0xE1, (byte) 0xA1, // 204: SKNP V1
+                0x7B, 0x01,         // 206: ADD VB, 01
+                0x12, 0x04          // 208: JP 204
+        };
+
+        int[] keys = new int[1];
+        Keypad keypad = new Keypad() {
+            public boolean pressed(int key) {
+                return (keys[0] >> key & 1) != 0;
+            }
+
+            public int state() {
+                return keys[0];
+            }
+        };
+
+        Chip8 interpreted = new Chip8(keypad);
+        interpreted.loadRom(rom);
+        Chip8 compiled = new Chip8(keypad);
+        compiled.loadRom(rom);
+        Recompiler recompiler = new Recompiler(compiled);
+
+        for (int frame = 0; frame < 200; frame++) {
+            keys[0] = frame >= 50 && frame % 20 < 10 ? 1 << 1 : 0;
+            for (int i = 0; i < 97; i++)
+                interpreted.cycle();
+            recompiler.run(97);
+
+            assertEquals(interpreted.getPc(), compiled.getPc());
+            assertArrayEquals(interpreted.getV(), compiled.getV());
+        }
+    }
+}
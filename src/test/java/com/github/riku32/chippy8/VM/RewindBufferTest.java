@@ -0,0 +1,80 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RewindBufferTest {
+    private static Chip8 load(String rom) throws IOException {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(Files.readAllBytes(Paths.get("roms", rom)));
+        return chip8;
+    }
+
+    private static void frame(Chip8 chip8) {
+        for (int i = 0; i < 10; i++)
+            chip8.cycle();
+        chip8.tickTimers();
+    }
+
+    @Test
+    public void rewindRestoresEveryFrame() throws IOException {
+        Chip8 chip8 = load("Invaders.ch8");
+        RewindBuffer rewind = new RewindBuffer(1 << 20, 16);
+
+        List<byte[]> states = new ArrayList<>();
+        for (int frame = 0; frame < 200; frame++) {
+            frame(chip8);
+            rewind.capture(chip8);
+            states.add(chip8.saveState());
+        }
+
+        for (int frame = 198; frame >= 0; frame--) {
+            assertTrue(rewind.rewind(chip8));
+            assertArrayEquals("frame " + frame, states.get(frame), chip8.saveState());
+        }
+        assertFalse(rewind.rewind(chip8));
+    }
+
+    @Test
+    public void historyStaysWithinBudget() throws IOException {
+        Chip8 chip8 = load("Tetris.ch8");
+        int budget = 64 * 1024;
+        RewindBuffer rewind = new RewindBuffer(budget, 30);
+
+        List<byte[]> states = new ArrayList<>();
+        for (int frame = 0; frame < 5000; frame++) {
+            frame(chip8);
+            rewind.capture(chip8);
+            states.add(chip8.saveState());
+            assertTrue(rewind.getMemoryUsage() <= budget);
+        }
+
+        // Old frames were evicted but the ones left still decode
+        int held = rewind.size();
+        assertTrue(held > 30 && held < 5000);
+        for (int i = 2; i <= held; i++) {
+            assertTrue(rewind.rewind(chip8));
+            assertArrayEquals(states.get(states.size() - i), chip8.saveState());
+        }
+        assertEquals(1, rewind.size());
+    }
+
+    @Test
+    public void allocationStaysWithinBudget() {
+        for (int budget : new int[]{64 * 1024, 16 * 1024 * 1024}) {
+            RewindBuffer rewind = new RewindBuffer(budget);
+            assertTrue(rewind.getAllocated() <= budget);
+            assertTrue(rewind.getAllocated() > budget - 64);
+        }
+    }
+}
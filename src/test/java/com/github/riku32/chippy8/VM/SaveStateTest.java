@@ -0,0 +1,117 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class SaveStateTest {
+    private static Chip8 running(String rom, int cycles) throws IOException {
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(Files.readAllBytes(Paths.get("roms", rom)));
+        for (int i = 0; i < cycles; i++) {
+            chip8.cycle();
+            if (i % 10 == 0)
+                chip8.tickTimers();
+        }
+        return chip8;
+    }
+
+    @Test
+    public void roundTripRestoresFullState() throws IOException {
+        Chip8 chip8 = running("Invaders.ch8", 20000);
+        chip8.setDelayTimer((byte) 0x42);
+        chip8.setSoundTimer((byte) 0x99);
+        chip8.resetDrawFlag();
+
+        ByteBuffer buffer = ByteBuffer.allocate(Chip8.STATE_SIZE + 8);
+        buffer.position(8);
+        chip8.saveState(buffer);
+        assertEquals(Chip8.STATE_SIZE + 8, buffer.position());
+
+        Chip8 restored = new Chip8(key -> false);
+        buffer.position(8);
+        restored.loadState(buffer);
+
+        assertEquals(chip8.getPc(), restored.getPc());
+        assertEquals(chip8.getSp(), restored.getSp());
+        assertEquals(chip8.getIndex(), restored.getIndex());
+        assertEquals(0x42, restored.getDelayTimer());
+        assertEquals((byte) 0x99, restored.getSoundTimer());
+        assertFalse(restored.isDrawFlag());
+        assertArrayEquals(chip8.getV(), restored.getV());
+        assertArrayEquals(chip8.getStack(), restored.getStack());
+        assertArrayEquals(chip8.getMemory().snapshot(), restored.getMemory().snapshot());
+        assertArrayEquals(chip8.getFrameBuffer(), restored.getFrameBuffer());
+        assertArrayEquals(chip8.saveState(), restored.saveState());
+    }
+
+    @Test
+    public void randomStateIsRestored() throws IOException {
+        // RND V0, FF repeated
+        byte[] rom = new byte[64];
+        for (int i = 0; i < rom.length; i += 2) {
+            rom[i] = (byte) 0xC0;
+            rom[i + 1] = (byte) 0xFF;
+        }
+
+        Chip8 chip8 = new Chip8(key -> false);
+        chip8.loadRom(rom);
+        chip8.cycle();
+        Chip8 restored = new Chip8(key -> false);
+        restored.loadState(chip8.saveState());
+
+        for (int i = 0; i < 16; i++) {
+            chip8.cycle();
+            restored.cycle();
+            assertEquals(chip8.getV()[0], restored.getV()[0]);
+        }
+    }
+
+    @Test
+    public void legacyStatesStillLoad() throws IOException {
+        Chip8 chip8 = running("Tetris.ch8", 5000);
+
+        // Layout written by the MessagePack save states
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packShort(chip8.getPc());
+        packer.packShort(chip8.getSp());
+        packer.packShort(chip8.getIndex());
+        packer.packArrayHeader(16);
+        for (byte val : chip8.getV())
+            packer.packByte(val);
+        packer.packArrayHeader(16);
+        for (short val : chip8.getStack())
+            packer.packShort(val);
+        packer.packArrayHeader(Memory.SIZE);
+        for (int i = 0; i < Memory.SIZE; i++)
+            packer.packShort((short) chip8.getMemory().read(i));
+        packer.packArrayHeader(64*32);
+        for (byte val : chip8.getVideoMemory())
+            packer.packByte(val);
+        packer.close();
+
+        Chip8 restored = new Chip8(key -> false);
+        restored.loadState(packer.toByteArray());
+
+        assertEquals(chip8.getPc(), restored.getPc());
+        assertArrayEquals(chip8.getV(), restored.getV());
+        assertArrayEquals(chip8.getMemory().snapshot(), restored.getMemory().snapshot());
+        assertArrayEquals(chip8.getFrameBuffer(), restored.getFrameBuffer());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        byte[] state = new Chip8(key -> false).saveState();
+        state[5] = 99;
+        new Chip8(key -> false).loadState(state);
+    }
+}
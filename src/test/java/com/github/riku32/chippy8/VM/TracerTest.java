@@ -0,0 +1,78 @@
+package com.github.riku32.chippy8.VM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TracerTest {
+    // Counts VA up forever
+    private static final byte[] ROM = {
+            0x6A, 0x00,             // 200: LD VA, 00
+            (byte) 0xA3, 0x00,      // 202: LD I, 300
+            0x7A, 0x01,             // 204: ADD VA, 01
+            0x12, 0x04              // 206: JP 204
+    };
+
+    private static String[] trace(int cycles, boolean recompile) throws IOException {
+        Path path = Files.createTempFile("chippy8", ".c8t");
+        try {
+            Chip8 chip8 = new Chip8(key -> false);
+            chip8.loadRom(ROM);
+
+            Tracer tracer = new Tracer(chip8, path, 2);
+            chip8.setTracer(tracer);
+            if (recompile) {
+                new Recompiler(chip8).run(cycles);
+            } else {
+                for (int i = 0; i < cycles; i++)
+                    chip8.cycle();
+            }
+            chip8.setTracer(null);
+            tracer.finish();
+            tracer.close();
+
+            assertEquals(cycles, tracer.getRecorded());
+
+            StringWriter text = new StringWriter();
+            Tracer.writeText(path, text);
+            return text.toString().split(System.lineSeparator());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void recordsEveryInstruction() throws IOException {
+        String[] lines = trace(5, false);
+
+        assertEquals(5, lines.length);
+        assertEquals("         0  200  6A00  LD VA, 0         I=0000", lines[0]);
+        assertEquals("         1  202  A300  LD I, 300        I=0300", lines[1]);
+        assertEquals("         2  204  7A01  ADD VA, 1        I=0300  VA=01", lines[2]);
+        assertEquals("         4  204  7A01  ADD VA, 1        I=0300  VA=02", lines[4]);
+    }
+
+    @Test
+    public void spansSegments() throws IOException {
+        int cycles = Tracer.SEGMENT_SIZE * 3 + 10;
+        String[] lines = trace(cycles, false);
+
+        // Segments are either written or reported as dropped, the last instruction always arrives
+        assertTrue(lines.length <= cycles);
+        assertTrue(lines[lines.length - 1].startsWith(String.format("%10d  206", cycles - 1)));
+    }
+
+    @Test
+    public void recompilerRunsEveryInstructionThroughTrace() throws IOException {
+        String[] lines = trace(1000, true);
+
+        assertEquals(1000, lines.length);
+        assertTrue(lines[999].startsWith("       999  206  1204"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.riku32.chippy8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class WavAudioSinkTest {
+    @Test
+    public void beepingFramesAreWrittenAsTone() throws IOException {
+        Path path = Files.createTempFile("chippy8-audio", ".wav");
+        try {
+            try (WavAudioSink sink = new WavAudioSink(path)) {
+                sink.frame(false);
+                sink.frame(true);
+                sink.frame(true);
+                sink.frame(false);
+            }
+
+            ByteBuffer wav = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+            int frameBytes = AudioSink.SAMPLES_PER_FRAME * 2;
+            assertEquals(44 + 4 * frameBytes, wav.limit());
+            assertEquals(0x46464952, wav.getInt(0));
+            assertEquals(AudioSink.SAMPLE_RATE, wav.getInt(24));
+            assertEquals(4 * frameBytes, wav.getInt(40));
+
+            // Silence, then a square wave that keeps its phase across frames
+            assertEquals(0, wav.getShort(44));
+            for (int i = 0; i < 2 * AudioSink.SAMPLES_PER_FRAME; i++) {
+                short sample = wav.getShort(44 + frameBytes + i * 2);
+                assertTrue(i % AudioSink.TONE_PERIOD < AudioSink.TONE_PERIOD / 2 ? sample > 0 : sample < 0);
+            }
+            assertEquals(0, wav.getShort(44 + 3 * frameBytes));
+        } finally {
+            Files.delete(path);
+        }
+    }
+}